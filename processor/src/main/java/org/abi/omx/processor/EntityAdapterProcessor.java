@@ -0,0 +1,280 @@
+package org.abi.omx.processor;
+
+import javax.annotation.processing.AbstractProcessor;
+import javax.annotation.processing.RoundEnvironment;
+import javax.annotation.processing.SupportedAnnotationTypes;
+import javax.lang.model.SourceVersion;
+import javax.lang.model.element.AnnotationMirror;
+import javax.lang.model.element.AnnotationValue;
+import javax.lang.model.element.Element;
+import javax.lang.model.element.ElementKind;
+import javax.lang.model.element.ExecutableElement;
+import javax.lang.model.element.Modifier;
+import javax.lang.model.element.PackageElement;
+import javax.lang.model.element.TypeElement;
+import javax.lang.model.element.VariableElement;
+import javax.lang.model.type.TypeMirror;
+import javax.tools.Diagnostic;
+import javax.tools.JavaFileObject;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Generates an org.abi.omx.EntityAdapter for every accessible @Table entity. The annotations are matched by name so
+ * the processor does not depend on the Android library itself.
+ */
+@SupportedAnnotationTypes(EntityAdapterProcessor.TABLE)
+public class EntityAdapterProcessor extends AbstractProcessor {
+    static final String TABLE = "org.abi.omx.Table";
+    static final String COLUMN = "org.abi.omx.Column";
+    static final String SUFFIX = "_OmxAdapter";
+
+    @Override
+    public SourceVersion getSupportedSourceVersion() {
+        return SourceVersion.latestSupported();
+    }
+
+    @Override
+    public boolean process(Set<? extends TypeElement> annotations, RoundEnvironment roundEnv) {
+        for (TypeElement annotation : annotations) {
+            for (Element element : roundEnv.getElementsAnnotatedWith(annotation)) {
+                if (element.getKind() == ElementKind.CLASS) {
+                    this.processEntity((TypeElement) element);
+                }
+            }
+        }
+        return false;
+    }
+
+    private void processEntity(TypeElement entity) {
+        String reason = this.checkAccessible(entity);
+        List<ColumnField> columns = new ArrayList<ColumnField>();
+        for (Element member : entity.getEnclosedElements()) {
+            if (member.getKind() != ElementKind.FIELD || this.getAnnotation(member, COLUMN) == null) {
+                continue;
+            }
+            if (member.getModifiers().contains(Modifier.PRIVATE)) {
+                reason = String.format("column field [%s] is private", member.getSimpleName());
+            } else if (member.getModifiers().contains(Modifier.FINAL)) {
+                reason = String.format("column field [%s] is final", member.getSimpleName());
+            }
+            columns.add(new ColumnField((VariableElement) member, this.getColumnName(member)));
+        }
+        if (reason == null && columns.isEmpty()) {
+            reason = "it has no columns";
+        }
+        if (reason != null) {
+            this.processingEnv.getMessager().printMessage(Diagnostic.Kind.NOTE,
+                    String.format("No adapter generated for [%s], %s; reflection is used instead.",
+                            entity.getQualifiedName(), reason), entity);
+            return;
+        }
+        try {
+            this.write(entity, columns);
+        } catch (IOException e) {
+            this.processingEnv.getMessager().printMessage(Diagnostic.Kind.ERROR,
+                    String.format("Cannot write adapter for [%s]: %s", entity.getQualifiedName(), e.getMessage()),
+                    entity);
+        }
+    }
+
+    private String checkAccessible(TypeElement entity) {
+        if (entity.getModifiers().contains(Modifier.ABSTRACT)) {
+            return "it is abstract";
+        }
+        if (entity.getEnclosingElement().getKind() != ElementKind.PACKAGE
+                && !entity.getModifiers().contains(Modifier.STATIC)) {
+            return "it is an inner class";
+        }
+        for (Element current = entity; current.getKind() != ElementKind.PACKAGE;
+             current = current.getEnclosingElement()) {
+            if (current.getModifiers().contains(Modifier.PRIVATE)) {
+                return "it is private";
+            }
+        }
+        boolean hasConstructors = false;
+        for (Element member : entity.getEnclosedElements()) {
+            if (member.getKind() == ElementKind.CONSTRUCTOR) {
+                hasConstructors = true;
+                ExecutableElement constructor = (ExecutableElement) member;
+                if (constructor.getParameters().isEmpty() && !constructor.getModifiers().contains(Modifier.PRIVATE)) {
+                    return null;
+                }
+            }
+        }
+        return hasConstructors ? "it has no accessible default constructor" : null;
+    }
+
+    private AnnotationMirror getAnnotation(Element element, String name) {
+        for (AnnotationMirror mirror : element.getAnnotationMirrors()) {
+            TypeElement type = (TypeElement) mirror.getAnnotationType().asElement();
+            if (type.getQualifiedName().contentEquals(name)) {
+                return mirror;
+            }
+        }
+        return null;
+    }
+
+    private String getColumnName(Element field) {
+        AnnotationMirror column = this.getAnnotation(field, COLUMN);
+        for (Map.Entry<? extends ExecutableElement, ? extends AnnotationValue> entry :
+                column.getElementValues().entrySet()) {
+            if (entry.getKey().getSimpleName().contentEquals("name")) {
+                String name = (String) entry.getValue().getValue();
+                if (name.length() > 0) {
+                    return name;
+                }
+            }
+        }
+        return field.getSimpleName().toString();
+    }
+
+    private void write(TypeElement entity, List<ColumnField> columns) throws IOException {
+        PackageElement packageElement = this.processingEnv.getElementUtils().getPackageOf(entity);
+        String packageName = packageElement.getQualifiedName().toString();
+        String binaryName = this.processingEnv.getElementUtils().getBinaryName(entity).toString();
+        String adapterName = binaryName.substring(packageName.length() == 0 ? 0 : packageName.length() + 1) + SUFFIX;
+        String entityName = entity.getQualifiedName().toString();
+
+        StringBuilder names = new StringBuilder();
+        StringBuilder binds = new StringBuilder();
+        StringBuilder reads = new StringBuilder();
+        for (int slot = 0; slot < columns.size(); slot++) {
+            ColumnField column = columns.get(slot);
+            if (names.length() > 0) {
+                names.append(", ");
+            }
+            names.append('"').append(column.name).append('"');
+            String field = "entity." + column.field.getSimpleName();
+            binds.append(String.format("            case %d:\n                %s\n                break;\n",
+                    slot, this.createBind(column.field.asType(), field)));
+            reads.append(String.format("            case %d:\n                %s = %s;\n                break;\n",
+                    slot, field, this.createRead(column.field.asType())));
+        }
+
+        JavaFileObject file = this.processingEnv.getFiler().createSourceFile(
+                packageName.length() == 0 ? adapterName : packageName + "." + adapterName, entity);
+        Writer writer = file.openWriter();
+        try {
+            if (packageName.length() > 0) {
+                writer.write(String.format("package %s;\n\n", packageName));
+            }
+            writer.write("import android.database.Cursor;\n");
+            writer.write("import android.database.sqlite.SQLiteProgram;\n");
+            writer.write("import org.abi.omx.EntityAdapter;\n");
+            writer.write("import org.abi.omx.OmxException;\n\n");
+            writer.write(String.format("public final class %s extends EntityAdapter<%s> {\n", adapterName, entityName));
+            writer.write(String.format("    private static final String[] COLUMNS = {%s};\n\n", names));
+            writer.write("    @Override\n");
+            writer.write(String.format("    public %s newInstance() {\n        return new %s();\n    }\n\n",
+                    entityName, entityName));
+            writer.write("    @Override\n");
+            writer.write("    public String[] getColumns() {\n        return COLUMNS;\n    }\n\n");
+            writer.write("    @Override\n");
+            writer.write(String.format("    public void bind(SQLiteProgram program, int index, %s entity, int slot)"
+                    + " throws OmxException {\n        switch (slot) {\n", entityName));
+            writer.write(binds.toString());
+            writer.write("            default:\n"
+                    + "                throw new OmxException(String.format(\"Unknown slot [%d].\", slot));\n"
+                    + "        }\n    }\n\n");
+            writer.write("    @Override\n");
+            writer.write(String.format("    public void read(Cursor cursor, int index, %s entity, int slot)"
+                    + " throws OmxException {\n        switch (slot) {\n", entityName));
+            writer.write(reads.toString());
+            writer.write("            default:\n"
+                    + "                throw new OmxException(String.format(\"Unknown slot [%d].\", slot));\n"
+                    + "        }\n    }\n}\n");
+        } finally {
+            writer.close();
+        }
+    }
+
+    private String createBind(TypeMirror type, String field) {
+        switch (type.getKind()) {
+            case INT:
+            case LONG:
+            case SHORT:
+            case BYTE:
+                return String.format("program.bindLong(index, %s);", field);
+            case DOUBLE:
+            case FLOAT:
+                return String.format("program.bindDouble(index, %s);", field);
+            case BOOLEAN:
+                return String.format("program.bindLong(index, %s ? 1 : 0);", field);
+            default:
+        }
+        String name = this.processingEnv.getTypeUtils().erasure(type).toString();
+        String bind;
+        if (name.equals("java.lang.Integer") || name.equals("java.lang.Long")
+                || name.equals("java.lang.Short") || name.equals("java.lang.Byte")) {
+            bind = String.format("program.bindLong(index, %s.longValue());", field);
+        } else if (name.equals("java.lang.Double") || name.equals("java.lang.Float")) {
+            bind = String.format("program.bindDouble(index, %s.doubleValue());", field);
+        } else if (name.equals("java.lang.Boolean")) {
+            bind = String.format("program.bindLong(index, %s ? 1 : 0);", field);
+        } else if (name.equals("java.lang.String")) {
+            bind = String.format("program.bindString(index, %s);", field);
+        } else if (name.equals("byte[]")) {
+            bind = String.format("program.bindBlob(index, %s);", field);
+        } else {
+            return String.format("bindObject(program, index, %s.class, %s);", name, field);
+        }
+        return String.format("if (%s == null) {\n                    program.bindNull(index);\n"
+                + "                } else {\n                    %s\n                }", field, bind);
+    }
+
+    private String createRead(TypeMirror type) {
+        switch (type.getKind()) {
+            case INT:
+                return "cursor.getInt(index)";
+            case LONG:
+                return "cursor.getLong(index)";
+            case SHORT:
+                return "cursor.getShort(index)";
+            case BYTE:
+                return "(byte) cursor.getShort(index)";
+            case DOUBLE:
+                return "cursor.getDouble(index)";
+            case FLOAT:
+                return "cursor.getFloat(index)";
+            case BOOLEAN:
+                return "cursor.getInt(index) != 0";
+            default:
+        }
+        String name = this.processingEnv.getTypeUtils().erasure(type).toString();
+        if (name.equals("java.lang.Integer")) {
+            return "cursor.getInt(index)";
+        } else if (name.equals("java.lang.Long")) {
+            return "cursor.getLong(index)";
+        } else if (name.equals("java.lang.Short")) {
+            return "cursor.getShort(index)";
+        } else if (name.equals("java.lang.Byte")) {
+            return "(byte) cursor.getShort(index)";
+        } else if (name.equals("java.lang.Double")) {
+            return "cursor.getDouble(index)";
+        } else if (name.equals("java.lang.Float")) {
+            return "cursor.getFloat(index)";
+        } else if (name.equals("java.lang.Boolean")) {
+            return "cursor.getInt(index) != 0";
+        } else if (name.equals("java.lang.String")) {
+            return "cursor.getString(index)";
+        } else if (name.equals("byte[]")) {
+            return "cursor.getBlob(index)";
+        }
+        return String.format("readObject(cursor, index, %s.class)", name);
+    }
+
+    private static class ColumnField {
+        private final VariableElement field;
+        private final String name;
+
+        ColumnField(VariableElement field, String name) {
+            this.field = field;
+            this.name = name;
+        }
+    }
+}
@@ -0,0 +1,72 @@
+package org.abi.omx;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Generates the rows of the benchmarks. Every generator starts from a fixed seed, so all runs work on the same data.
+ */
+public class BenchmarkData {
+    public static final long SEED = 20150504L;
+
+    private final Random random;
+
+    public BenchmarkData() {
+        this(SEED);
+    }
+
+    public BenchmarkData(long seed) {
+        this.random = new Random(seed);
+    }
+
+    public <T extends Entity> List<T> create(Class<T> cls, int count) throws Exception {
+        List<T> entities = new ArrayList<T>(count);
+        for (int i = 1; i <= count; i++) {
+            T entity = cls.newInstance();
+            this.fill(entity, i);
+            entities.add(entity);
+        }
+        return entities;
+    }
+
+    /**
+     * Sets the columns of a benchmark entity; the id is kept so the entity can be saved over its stored row.
+     */
+    public void fill(Entity entity, long id) {
+        String name = this.nextName();
+        double amount = Math.round(this.random.nextDouble() * 100000) / 100.0;
+        int quantity = this.random.nextInt(1000);
+        boolean active = this.random.nextBoolean();
+        long created = 1420070400000L + (long) this.random.nextInt(Integer.MAX_VALUE) * 1000;
+        if (entity instanceof BenchmarkEntity) {
+            BenchmarkEntity target = (BenchmarkEntity) entity;
+            target.id = id;
+            target.name = name;
+            target.amount = amount;
+            target.quantity = quantity;
+            target.active = active;
+            target.created = created;
+        } else {
+            FactoryBenchmarkEntity target = (FactoryBenchmarkEntity) entity;
+            target.id = id;
+            target.name = name;
+            target.amount = amount;
+            target.quantity = quantity;
+            target.active = active;
+            target.created = created;
+        }
+    }
+
+    public long nextId(int count) {
+        return 1 + this.random.nextInt(count);
+    }
+
+    private String nextName() {
+        char[] chars = new char[8 + this.random.nextInt(16)];
+        for (int i = 0; i < chars.length; i++) {
+            chars[i] = (char) ('a' + this.random.nextInt(26));
+        }
+        return new String(chars);
+    }
+}
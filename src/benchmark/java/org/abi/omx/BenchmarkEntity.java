@@ -0,0 +1,26 @@
+package org.abi.omx;
+
+/**
+ * Row type of the benchmarks, created through reflection.
+ */
+@Table(name = "benchmark")
+public class BenchmarkEntity extends Entity {
+    @Column
+    @PrimaryKey
+    public long id;
+
+    @Column
+    public String name;
+
+    @Column
+    public double amount;
+
+    @Column
+    public int quantity;
+
+    @Column
+    public boolean active;
+
+    @Column
+    public long created;
+}
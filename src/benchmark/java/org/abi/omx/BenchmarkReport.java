@@ -0,0 +1,102 @@
+package org.abi.omx;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Runs benchmark cases with warm-up and measured iterations and collects the timings into a JSON report, one
+ * object per case, so runs of different library versions can be compared by a script.
+ */
+public class BenchmarkReport {
+    public abstract static class Case {
+        /**
+         * Prepares one iteration; not measured.
+         */
+        public void setUp() throws Exception {
+        }
+
+        /**
+         * Runs one iteration of the given number of operations.
+         */
+        public abstract void run() throws Exception;
+    }
+
+    private static final List<String> results = new ArrayList<String>();
+
+    private final File output;
+    private final int warmups;
+    private final int iterations;
+
+    public BenchmarkReport(File output, int warmups, int iterations) {
+        this.output = output;
+        this.warmups = warmups;
+        this.iterations = iterations;
+    }
+
+    /**
+     * Measures the case and rewrites the report with all cases measured so far in this process.
+     */
+    public void measure(String name, int operations, Case benchmark) throws Exception {
+        for (int i = 0; i < this.warmups; i++) {
+            benchmark.setUp();
+            benchmark.run();
+        }
+        long[] nanos = new long[this.iterations];
+        for (int i = 0; i < this.iterations; i++) {
+            benchmark.setUp();
+            long start = System.nanoTime();
+            benchmark.run();
+            nanos[i] = System.nanoTime() - start;
+        }
+        Arrays.sort(nanos);
+        long total = 0;
+        for (long value : nanos) {
+            total += value;
+        }
+        double nanosPerOp = (double) total / this.iterations / operations;
+        String result = String.format(Locale.US,
+                "{\"name\": \"%s\", \"iterations\": %d, \"operations\": %d, \"nsPerOp\": %.1f, "
+                        + "\"opsPerSecond\": %.1f, \"p50NsPerOp\": %.1f, \"p90NsPerOp\": %.1f, "
+                        + "\"minNsPerOp\": %.1f, \"maxNsPerOp\": %.1f}",
+                name, this.iterations, operations, nanosPerOp, 1000000000.0 / nanosPerOp,
+                (double) this.percentile(nanos, 50) / operations, (double) this.percentile(nanos, 90) / operations,
+                (double) nanos[0] / operations, (double) nanos[nanos.length - 1] / operations);
+        System.out.println(result);
+        synchronized (results) {
+            results.add(result);
+            this.write();
+        }
+    }
+
+    private long percentile(long[] sorted, int percentile) {
+        int index = (int) Math.ceil(percentile / 100.0 * sorted.length) - 1;
+        return sorted[Math.max(0, Math.min(sorted.length - 1, index))];
+    }
+
+    private void write() throws IOException {
+        File parent = this.output.getParentFile();
+        if (parent != null && !parent.exists() && !parent.mkdirs()) {
+            throw new IOException(String.format("Cannot create [%s].", parent.getPath()));
+        }
+        Writer writer = new OutputStreamWriter(new FileOutputStream(this.output), "UTF-8");
+        try {
+            writer.write(String.format(Locale.US, "{\"suite\": \"omx\", \"java\": \"%s\", \"seed\": %d, \"results\": [\n",
+                    System.getProperty("java.version"), BenchmarkData.SEED));
+            for (int i = 0; i < results.size(); i++) {
+                writer.write("  ");
+                writer.write(results.get(i));
+                writer.write(i < results.size() - 1 ? ",\n" : "\n");
+            }
+            writer.write("]}\n");
+        } finally {
+            writer.close();
+        }
+    }
+}
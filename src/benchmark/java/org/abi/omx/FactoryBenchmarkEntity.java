@@ -0,0 +1,33 @@
+package org.abi.omx;
+
+/**
+ * Same columns as {@link BenchmarkEntity} in a table of its own, created through a registered factory.
+ */
+@Table(name = "benchmark_factory")
+public class FactoryBenchmarkEntity extends Entity {
+    public static final Entity.Factory FACTORY = new Entity.Factory() {
+        @Override
+        public Entity create() {
+            return new FactoryBenchmarkEntity();
+        }
+    };
+
+    @Column
+    @PrimaryKey
+    public long id;
+
+    @Column
+    public String name;
+
+    @Column
+    public double amount;
+
+    @Column
+    public int quantity;
+
+    @Column
+    public boolean active;
+
+    @Column
+    public long created;
+}
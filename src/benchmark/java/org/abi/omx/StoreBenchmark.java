@@ -0,0 +1,198 @@
+package org.abi.omx;
+
+import android.content.Context;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.Config;
+
+import java.io.File;
+import java.util.List;
+
+/**
+ * Benchmarks of the store, mapper and query hot paths on the SQLite of Robolectric. Run them with
+ * gradle testDebugUnitTest -Pbenchmark; the report is written to build/benchmarks/results.json.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(manifest = Config.NONE, sdk = 21)
+public class StoreBenchmark {
+    private static final int ROWS = Integer.getInteger("omx.benchmark.rows", 10000);
+    private static final int WARMUPS = Integer.getInteger("omx.benchmark.warmups", 2);
+    private static final int ITERATIONS = Integer.getInteger("omx.benchmark.iterations", 5);
+    private static final String OUTPUT = System.getProperty("omx.benchmark.output", "build/benchmarks/results.json");
+    private static final String NAME = "omx-benchmark";
+
+    private Context context;
+    private Schema schema;
+    private Store<BenchmarkEntity> store;
+    private Store<FactoryBenchmarkEntity> factoryStore;
+    private BenchmarkReport report;
+
+    @Before
+    public void setUp() throws Exception {
+        this.context = RuntimeEnvironment.application;
+        this.context.deleteDatabase(NAME + ".db");
+        this.schema = new DefaultSchema(this.context, NAME);
+        this.schema.createTable(BenchmarkEntity.class);
+        this.schema.createTable(FactoryBenchmarkEntity.class, FactoryBenchmarkEntity.FACTORY);
+        this.store = this.schema.getStore(BenchmarkEntity.class);
+        this.factoryStore = this.schema.getStore(FactoryBenchmarkEntity.class);
+        this.report = new BenchmarkReport(new File(OUTPUT), WARMUPS, ITERATIONS);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        this.schema.dropTable(BenchmarkEntity.class);
+        this.schema.dropTable(FactoryBenchmarkEntity.class);
+        this.schema.close();
+        this.context.deleteDatabase(NAME + ".db");
+    }
+
+    private void recreate() throws OmxException {
+        this.schema.dropTable(BenchmarkEntity.class);
+        this.schema.createTable(BenchmarkEntity.class);
+    }
+
+    private void populate() throws Exception {
+        this.store.createAll(new BenchmarkData().create(BenchmarkEntity.class, ROWS));
+    }
+
+    @Test
+    public void insertSingle() throws Exception {
+        final int count = Math.max(1, ROWS / 10);
+        final List<BenchmarkEntity> entities = new BenchmarkData().create(BenchmarkEntity.class, count);
+        this.report.measure("store.create", count, new BenchmarkReport.Case() {
+            @Override
+            public void setUp() throws Exception {
+                StoreBenchmark.this.recreate();
+            }
+
+            @Override
+            public void run() throws Exception {
+                for (BenchmarkEntity entity : entities) {
+                    StoreBenchmark.this.store.create(entity);
+                }
+            }
+        });
+    }
+
+    @Test
+    public void insertBulk() throws Exception {
+        final List<BenchmarkEntity> entities = new BenchmarkData().create(BenchmarkEntity.class, ROWS);
+        this.report.measure("store.createAll", ROWS, new BenchmarkReport.Case() {
+            @Override
+            public void setUp() throws Exception {
+                StoreBenchmark.this.recreate();
+            }
+
+            @Override
+            public void run() throws Exception {
+                StoreBenchmark.this.store.createAll(entities);
+            }
+        });
+    }
+
+    @Test
+    public void saveBulk() throws Exception {
+        this.populate();
+        final BenchmarkData data = new BenchmarkData();
+        final List<BenchmarkEntity> entities = data.create(BenchmarkEntity.class, ROWS);
+        this.report.measure("store.saveAll", ROWS, new BenchmarkReport.Case() {
+            @Override
+            public void setUp() throws Exception {
+                for (BenchmarkEntity entity : entities) {
+                    data.fill(entity, entity.id);
+                }
+            }
+
+            @Override
+            public void run() throws Exception {
+                StoreBenchmark.this.store.saveAll(entities);
+            }
+        });
+    }
+
+    @Test
+    public void pointLookup() throws Exception {
+        this.populate();
+        BenchmarkData data = new BenchmarkData();
+        final long[] ids = new long[ROWS];
+        for (int i = 0; i < ids.length; i++) {
+            ids[i] = data.nextId(ROWS);
+        }
+        this.report.measure("store.get", ids.length, new BenchmarkReport.Case() {
+            @Override
+            public void run() throws Exception {
+                for (long id : ids) {
+                    StoreBenchmark.this.store.get(id);
+                }
+            }
+        });
+    }
+
+    @Test
+    public void scan() throws Exception {
+        this.populate();
+        this.report.measure("store.find", ROWS, new BenchmarkReport.Case() {
+            @Override
+            public void run() throws Exception {
+                StoreBenchmark.this.store.find();
+            }
+        });
+    }
+
+    @Test
+    public void streamScan() throws Exception {
+        this.populate();
+        this.report.measure("query.stream", ROWS, new BenchmarkReport.Case() {
+            @Override
+            public void run() throws Exception {
+                LazyQueryResult<BenchmarkEntity> result =
+                        StoreBenchmark.this.store.query().select("*").from("benchmark").stream();
+                try {
+                    for (BenchmarkEntity entity : result) {
+                        entity.quantity++;
+                    }
+                } finally {
+                    result.close();
+                }
+            }
+        });
+    }
+
+    @Test
+    public void queryCompile() throws Exception {
+        final int count = ROWS;
+        this.report.measure("query.compile", count, new BenchmarkReport.Case() {
+            @Override
+            public void run() throws Exception {
+                for (int i = 0; i < count; i++) {
+                    StoreBenchmark.this.store.query().select("*").from("benchmark")
+                            .where("amount > ? and active = ?", 10.0, true).orderBy("created desc").compile();
+                }
+            }
+        });
+    }
+
+    @Test
+    public void instantiation() throws Exception {
+        this.populate();
+        this.factoryStore.createAll(new BenchmarkData().create(FactoryBenchmarkEntity.class, ROWS));
+        this.report.measure("mapper.reflection", ROWS, new BenchmarkReport.Case() {
+            @Override
+            public void run() throws Exception {
+                StoreBenchmark.this.store.find();
+            }
+        });
+        this.report.measure("mapper.factory", ROWS, new BenchmarkReport.Case() {
+            @Override
+            public void run() throws Exception {
+                StoreBenchmark.this.factoryStore.find();
+            }
+        });
+    }
+}
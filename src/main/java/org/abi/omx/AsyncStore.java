@@ -0,0 +1,155 @@
+package org.abi.omx;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.Future;
+
+/**
+ * Runs the calls of a store off the caller's thread. Writes are queued on the single writer thread of the schema and
+ * therefore applied in the order they were submitted, reads run on the reader pool. Every call returns a future and
+ * optionally reports to a callback, which may be null.
+ */
+public class AsyncStore<T extends Entity> {
+    private final Store<T> store;
+
+    AsyncStore(Store<T> store) {
+        this.store = store;
+    }
+
+    public Store<T> getStore() {
+        return this.store;
+    }
+
+    public Future<T> get(Object... args) {
+        return this.get(null, args);
+    }
+
+    public Future<T> get(Callback<T> callback, final Object... args) {
+        return this.store.getSchema().submitRead(new Callable<T>() {
+            @Override
+            public T call() throws Exception {
+                return AsyncStore.this.store.get(args);
+            }
+        }, callback);
+    }
+
+    public Future<QueryResult<T>> find(Callback<QueryResult<T>> callback) {
+        return this.find(callback, null);
+    }
+
+    public Future<QueryResult<T>> find(Callback<QueryResult<T>> callback, final String where, final Object... args) {
+        return this.store.getSchema().submitRead(new Callable<QueryResult<T>>() {
+            @Override
+            public QueryResult<T> call() throws Exception {
+                return AsyncStore.this.store.find(where, args);
+            }
+        }, callback);
+    }
+
+    public Future<Void> create(T entity) {
+        return this.create(entity, null);
+    }
+
+    public Future<Void> create(final T entity, Callback<Void> callback) {
+        return this.store.getSchema().submitWrite(new Callable<Void>() {
+            @Override
+            public Void call() throws Exception {
+                AsyncStore.this.store.create(entity);
+                return null;
+            }
+        }, callback);
+    }
+
+    public Future<Void> update(T entity) {
+        return this.update(entity, null);
+    }
+
+    public Future<Void> update(final T entity, Callback<Void> callback) {
+        return this.store.getSchema().submitWrite(new Callable<Void>() {
+            @Override
+            public Void call() throws Exception {
+                AsyncStore.this.store.update(entity);
+                return null;
+            }
+        }, callback);
+    }
+
+    public Future<Void> remove(T entity) {
+        return this.remove(entity, null);
+    }
+
+    public Future<Void> remove(final T entity, Callback<Void> callback) {
+        return this.store.getSchema().submitWrite(new Callable<Void>() {
+            @Override
+            public Void call() throws Exception {
+                AsyncStore.this.store.remove(entity);
+                return null;
+            }
+        }, callback);
+    }
+
+    public Future<Void> save(T entity) {
+        return this.save(entity, null);
+    }
+
+    public Future<Void> save(final T entity, Callback<Void> callback) {
+        return this.store.getSchema().submitWrite(new Callable<Void>() {
+            @Override
+            public Void call() throws Exception {
+                AsyncStore.this.store.save(entity);
+                return null;
+            }
+        }, callback);
+    }
+
+    public Future<int[]> createAll(Iterable<T> entities) {
+        return this.createAll(entities, null);
+    }
+
+    public Future<int[]> createAll(final Iterable<T> entities, Callback<int[]> callback) {
+        return this.store.getSchema().submitWrite(new Callable<int[]>() {
+            @Override
+            public int[] call() throws Exception {
+                return AsyncStore.this.store.createAll(entities);
+            }
+        }, callback);
+    }
+
+    public Future<int[]> updateAll(Iterable<T> entities) {
+        return this.updateAll(entities, null);
+    }
+
+    public Future<int[]> updateAll(final Iterable<T> entities, Callback<int[]> callback) {
+        return this.store.getSchema().submitWrite(new Callable<int[]>() {
+            @Override
+            public int[] call() throws Exception {
+                return AsyncStore.this.store.updateAll(entities);
+            }
+        }, callback);
+    }
+
+    public Future<int[]> removeAll(Iterable<T> entities) {
+        return this.removeAll(entities, null);
+    }
+
+    public Future<int[]> removeAll(final Iterable<T> entities, Callback<int[]> callback) {
+        return this.store.getSchema().submitWrite(new Callable<int[]>() {
+            @Override
+            public int[] call() throws Exception {
+                return AsyncStore.this.store.removeAll(entities);
+            }
+        }, callback);
+    }
+
+    public Future<int[]> saveAll(Iterable<T> entities) {
+        return this.saveAll(entities, null);
+    }
+
+    public Future<int[]> saveAll(final Iterable<T> entities, Callback<int[]> callback) {
+        return this.store.getSchema().submitWrite(new Callable<int[]>() {
+            @Override
+            public int[] call() throws Exception {
+                return AsyncStore.this.store.saveAll(entities);
+            }
+        }, callback);
+    }
+}
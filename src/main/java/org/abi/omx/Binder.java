@@ -0,0 +1,93 @@
+package org.abi.omx;
+
+import android.database.sqlite.SQLiteProgram;
+
+/**
+ * Binds entity fields and query arguments into compiled programs using the native SQLite types.
+ */
+class Binder {
+    public static void bind(SQLiteProgram program, int index, Object value) {
+        if (value == null) {
+            program.bindNull(index);
+        } else if (value instanceof String) {
+            program.bindString(index, (String) value);
+        } else if (value instanceof Long || value instanceof Integer || value instanceof Short || value instanceof Byte) {
+            program.bindLong(index, ((Number) value).longValue());
+        } else if (value instanceof Double || value instanceof Float) {
+            program.bindDouble(index, ((Number) value).doubleValue());
+        } else if (value instanceof Boolean) {
+            program.bindLong(index, ((Boolean) value) ? 1 : 0);
+        } else if (value instanceof byte[]) {
+            program.bindBlob(index, (byte[]) value);
+        } else {
+            Mapper.TypeResolver<Object> resolver =
+                    (Mapper.TypeResolver<Object>) Mapper.getInstance().findTypeResolver(value.getClass());
+            if (resolver != null) {
+                Object converted = resolver.toSQL(value);
+                if (converted != value) {
+                    bind(program, index, converted);
+                    return;
+                }
+            }
+            program.bindString(index, value.toString());
+        }
+    }
+
+    public static void bindField(SQLiteProgram program, int index, FieldDescriptor descriptor, Object entity)
+            throws OmxException {
+        try {
+            if (descriptor.primitive != null) {
+                descriptor.primitive.bind(program, index, entity, descriptor.field);
+                return;
+            }
+            Object value = descriptor.field.get(entity);
+            if (value == null) {
+                program.bindNull(index);
+            } else {
+                bind(program, index, ((Mapper.TypeResolver<Object>) descriptor.resolver).toSQL(value));
+            }
+        } catch (IllegalAccessException e) {
+            throw new OmxException(e);
+        }
+    }
+
+    private static void bindColumn(SQLiteProgram program, int index, TableDescriptor descriptor,
+                                   FieldDescriptor fieldDescriptor, Object entity) throws OmxException {
+        if (descriptor.adapter != null) {
+            descriptor.adapter.bind(program, index, (Entity) entity, fieldDescriptor.slot);
+        } else {
+            bindField(program, index, fieldDescriptor, entity);
+        }
+    }
+
+    /**
+     * Binds all columns in the order of {@link TableDescriptor#insertSQL}.
+     */
+    public static void bindInsert(SQLiteProgram program, TableDescriptor descriptor, Object entity)
+            throws OmxException {
+        int index = 1;
+        for (FieldDescriptor fieldDescriptor : descriptor.fieldDescriptors) {
+            bindColumn(program, index++, descriptor, fieldDescriptor, entity);
+        }
+    }
+
+    /**
+     * Binds the non key columns followed by the keys in the order of {@link TableDescriptor#updateSQL}.
+     */
+    public static void bindUpdate(SQLiteProgram program, TableDescriptor descriptor, Object entity)
+            throws OmxException {
+        int index = 1;
+        for (FieldDescriptor fieldDescriptor : descriptor.valueDescriptors) {
+            bindColumn(program, index++, descriptor, fieldDescriptor, entity);
+        }
+        bindKeys(program, descriptor, entity, index);
+    }
+
+    public static int bindKeys(SQLiteProgram program, TableDescriptor descriptor, Object entity, int index)
+            throws OmxException {
+        for (FieldDescriptor fieldDescriptor : descriptor.keyDescriptors) {
+            bindColumn(program, index++, descriptor, fieldDescriptor, entity);
+        }
+        return index;
+    }
+}
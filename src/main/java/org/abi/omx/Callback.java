@@ -0,0 +1,10 @@
+package org.abi.omx;
+
+/**
+ * Receives the outcome of an asynchronous call on the thread which executed it.
+ */
+public interface Callback<T> {
+    void onSuccess(T result);
+
+    void onError(OmxException e);
+}
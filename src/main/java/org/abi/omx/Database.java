@@ -2,46 +2,66 @@ package org.abi.omx;
 
 import android.content.Context;
 
-import java.util.ArrayList;
-import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
 
 /**
  * Created by abi on 18.05.15.
  */
 public class Database {
     private static Database instance = new Database();
-    private Context context;
-    private List<Schema> schemas;
-    private Map<String, Schema> schemasMap;
+    private volatile Context context;
+    private final List<Schema> schemas;
+    private final Map<String, Schema> schemasMap;
 
     private Database() {
+        this.schemas = new CopyOnWriteArrayList<Schema>();
+        this.schemasMap = new ConcurrentHashMap<String, Schema>();
     }
 
     public static Database getInstance() {
         return instance;
     }
 
-    public void initialize(Context context) throws OmxException {
+    public synchronized void initialize(Context context) throws OmxException {
         if (this.context != null) {
             throw new OmxException("Database is already initialised.");
         }
         this.context = context;
-        this.schemas = new ArrayList<Schema>();
-        this.schemasMap = new HashMap<String, Schema>();
     }
 
     public Schema createSchema(String name) {
+        return this.createSchema(name, SchemaOptions.DEFAULT);
+    }
+
+    /**
+     * Creates the schema with the given options, or returns the existing schema of that name unchanged. Creation is
+     * serialized since it opens the database; looking schemas up does not lock.
+     */
+    public synchronized Schema createSchema(String name, SchemaOptions options) {
         Schema schema = this.schemasMap.get(name);
         if (schema == null) {
-            schema = new DefaultSchema(context, name);
+            schema = new DefaultSchema(context, name, options);
             this.schemas.add(schema);
             this.schemasMap.put(name, schema);
         }
         return schema;
     }
 
+    /**
+     * Closes the schema and forgets it, so it can be created again.
+     */
+    public synchronized void closeSchema(String name) throws OmxException {
+        Schema schema = this.schemasMap.remove(name);
+        if (schema == null) {
+            throw new OmxException(String.format("Schema [%s] not found.", name));
+        }
+        this.schemas.remove(schema);
+        schema.close();
+    }
+
     public Schema getSchema(String name) throws OmxException {
         if (name == null) {
             if (this.schemas.size() == 0) {
@@ -57,14 +77,14 @@ public class Database {
     }
 
     public Schema getSchema() throws OmxException {
-        return this.schemasMap.get(null);
+        return this.getSchema(null);
     }
 
-    public <T extends Entity> Store getStore(Class<T> cls) throws OmxException {
+    public <T extends Entity> Store<T> getStore(Class<T> cls) throws OmxException {
         return this.getStore(null, cls);
     }
 
-    public <T extends Entity> Store getStore(String schemaName, Class<T> cls) throws OmxException {
+    public <T extends Entity> Store<T> getStore(String schemaName, Class<T> cls) throws OmxException {
         Schema schema = this.getSchema(schemaName);
         return schema.getStore(cls);
     }
@@ -74,4 +94,8 @@ class DefaultSchema extends Schema {
     public DefaultSchema(Context context, String name) {
         super(context, name);
     }
+
+    public DefaultSchema(Context context, String name, SchemaOptions options) {
+        super(context, name, options);
+    }
 }
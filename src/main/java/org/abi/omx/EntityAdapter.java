@@ -0,0 +1,35 @@
+package org.abi.omx;
+
+import android.database.Cursor;
+import android.database.sqlite.SQLiteProgram;
+
+/**
+ * Instantiates, binds and reads an entity without reflection. Adapters are generated by the omx annotation processor
+ * as [entity class name]_OmxAdapter and picked up automatically; every column of the entity is addressed by its slot,
+ * the position of the column name in {@link #getColumns()}.
+ */
+public abstract class EntityAdapter<T extends Entity> {
+    public static final String SUFFIX = "_OmxAdapter";
+
+    public abstract T newInstance();
+
+    public abstract String[] getColumns();
+
+    public abstract void bind(SQLiteProgram program, int index, T entity, int slot) throws OmxException;
+
+    public abstract void read(Cursor cursor, int index, T entity, int slot) throws OmxException;
+
+    protected static void bindObject(SQLiteProgram program, int index, Class<?> type, Object value)
+            throws OmxException {
+        if (value == null) {
+            program.bindNull(index);
+            return;
+        }
+        Mapper.TypeResolver<Object> resolver = (Mapper.TypeResolver<Object>) Mapper.getInstance().getTypeResolver(type);
+        Binder.bind(program, index, resolver.toSQL(value));
+    }
+
+    protected static <V> V readObject(Cursor cursor, int index, Class<V> type) throws OmxException {
+        return Mapper.getInstance().getTypeResolver(type).fromSQL(cursor, index);
+    }
+}
@@ -0,0 +1,99 @@
+package org.abi.omx;
+
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Identity map of the entities of one table keyed by their primary keys, evicted by size (least recently used first)
+ * and optionally by age.
+ */
+class EntityCache {
+    private final long ttl;
+    private final LinkedHashMap<List<Object>, Entry> entries;
+    private long generation;
+
+    public EntityCache(final int maxSize, long ttlMillis) {
+        this.ttl = ttlMillis * 1000000L;
+        this.entries = new LinkedHashMap<List<Object>, Entry>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<List<Object>, Entry> eldest) {
+                return this.size() > maxSize;
+            }
+        };
+    }
+
+    public static List<Object> key(Object[] values) {
+        Object[] key = new Object[values.length];
+        for (int i = 0; i < values.length; i++) {
+            Object value = values[i];
+            if (value instanceof Integer || value instanceof Short || value instanceof Byte) {
+                value = ((Number) value).longValue();
+            } else if (value instanceof Float) {
+                value = ((Float) value).doubleValue();
+            }
+            key[i] = value;
+        }
+        return Arrays.asList(key);
+    }
+
+    public static List<Object> key(TableDescriptor descriptor, Object entity) throws OmxException {
+        Object[] values = new Object[descriptor.keyDescriptors.size()];
+        try {
+            for (int i = 0; i < values.length; i++) {
+                values[i] = descriptor.keyDescriptors.get(i).field.get(entity);
+            }
+        } catch (IllegalAccessException e) {
+            throw new OmxException(e);
+        }
+        return key(values);
+    }
+
+    public synchronized Object get(List<Object> key) {
+        Entry entry = this.entries.get(key);
+        if (entry == null) {
+            return null;
+        }
+        if (this.ttl > 0 && System.nanoTime() - entry.created > this.ttl) {
+            this.entries.remove(key);
+            return null;
+        }
+        return entry.entity;
+    }
+
+    /**
+     * Returns the current generation, which changes with every eviction. Read it before loading an entity and pass it
+     * to {@link #put}, so an entity loaded concurrently with a write is not cached.
+     */
+    public synchronized long getGeneration() {
+        return this.generation;
+    }
+
+    public synchronized void put(List<Object> key, Object entity, long generation) {
+        if (generation != this.generation) {
+            return;
+        }
+        this.entries.put(key, new Entry(entity));
+    }
+
+    public synchronized void remove(List<Object> key) {
+        this.generation++;
+        this.entries.remove(key);
+    }
+
+    public synchronized void clear() {
+        this.generation++;
+        this.entries.clear();
+    }
+
+    private static class Entry {
+        private final Object entity;
+        private final long created;
+
+        Entry(Object entity) {
+            this.entity = entity;
+            this.created = System.nanoTime();
+        }
+    }
+}
@@ -0,0 +1,196 @@
+package org.abi.omx;
+
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Collects the total time of every statement per SQL text and reports percentiles. Each statement keeps its most
+ * recent samples in a ring; statements beyond the limit are not tracked.
+ *
+ * <pre>
+ * HistogramQueryListener histogram = new HistogramQueryListener();
+ * schema.addQueryListener(histogram);
+ * ...
+ * for (HistogramQueryListener.Statistics statistics : histogram.getStatistics().values()) {
+ *     Log.i("omx", statistics.toString());
+ * }
+ * </pre>
+ */
+public class HistogramQueryListener implements QueryListener {
+    public static final int DEFAULT_SAMPLES = 1024;
+    public static final int DEFAULT_STATEMENTS = 256;
+
+    private final int samples;
+    private final int statements;
+    private final Map<String, Histogram> histograms;
+
+    public HistogramQueryListener() {
+        this(DEFAULT_SAMPLES, DEFAULT_STATEMENTS);
+    }
+
+    /**
+     * Keeps up to samples timings for each of at most statements distinct statements; both must be at least one.
+     */
+    public HistogramQueryListener(int samples, int statements) {
+        if (samples < 1) {
+            throw new IllegalArgumentException(String.format("Invalid number of samples [%d].", samples));
+        }
+        if (statements < 1) {
+            throw new IllegalArgumentException(String.format("Invalid number of statements [%d].", statements));
+        }
+        this.samples = samples;
+        this.statements = statements;
+        this.histograms = new HashMap<String, Histogram>();
+    }
+
+    @Override
+    public void onQuery(QueryEvent event) {
+        synchronized (this.histograms) {
+            Histogram histogram = this.histograms.get(event.getSql());
+            if (histogram == null) {
+                if (this.histograms.size() >= this.statements) {
+                    return;
+                }
+                histogram = new Histogram(this.samples);
+                this.histograms.put(event.getSql(), histogram);
+            }
+            histogram.add(event.getTotalNanos());
+        }
+    }
+
+    /**
+     * Returns the statistics of every tracked statement, slowest p99 first.
+     */
+    public Map<String, Statistics> getStatistics() {
+        Statistics[] results;
+        synchronized (this.histograms) {
+            results = new Statistics[this.histograms.size()];
+            int index = 0;
+            for (Map.Entry<String, Histogram> entry : this.histograms.entrySet()) {
+                results[index++] = entry.getValue().snapshot(entry.getKey());
+            }
+        }
+        Arrays.sort(results, new Comparator<Statistics>() {
+            @Override
+            public int compare(Statistics left, Statistics right) {
+                return left.p99 < right.p99 ? 1 : (left.p99 == right.p99 ? 0 : -1);
+            }
+        });
+        Map<String, Statistics> statistics = new LinkedHashMap<String, Statistics>();
+        for (Statistics result : results) {
+            statistics.put(result.sql, result);
+        }
+        return statistics;
+    }
+
+    public Statistics getStatistics(String sql) {
+        synchronized (this.histograms) {
+            Histogram histogram = this.histograms.get(sql);
+            return histogram == null ? null : histogram.snapshot(sql);
+        }
+    }
+
+    public void reset() {
+        synchronized (this.histograms) {
+            this.histograms.clear();
+        }
+    }
+
+    /**
+     * Timings of one statement in nanoseconds. The count, mean and max cover every call, the percentiles the
+     * retained samples.
+     */
+    public static class Statistics {
+        private final String sql;
+        private final long count;
+        private final long mean;
+        private final long max;
+        private final long p50;
+        private final long p95;
+        private final long p99;
+
+        Statistics(String sql, long count, long mean, long max, long p50, long p95, long p99) {
+            this.sql = sql;
+            this.count = count;
+            this.mean = mean;
+            this.max = max;
+            this.p50 = p50;
+            this.p95 = p95;
+            this.p99 = p99;
+        }
+
+        public String getSql() {
+            return this.sql;
+        }
+
+        public long getCount() {
+            return this.count;
+        }
+
+        public long getMean() {
+            return this.mean;
+        }
+
+        public long getMax() {
+            return this.max;
+        }
+
+        public long getP50() {
+            return this.p50;
+        }
+
+        public long getP95() {
+            return this.p95;
+        }
+
+        public long getP99() {
+            return this.p99;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("[%s] count=%d mean=%dns p50=%dns p95=%dns p99=%dns max=%dns", this.sql, this.count,
+                    this.mean, this.p50, this.p95, this.p99, this.max);
+        }
+    }
+
+    private static class Histogram {
+        private final long[] samples;
+        private int size;
+        private int next;
+        private long count;
+        private long total;
+        private long max;
+
+        Histogram(int capacity) {
+            this.samples = new long[capacity];
+        }
+
+        void add(long nanos) {
+            this.samples[this.next] = nanos;
+            this.next = (this.next + 1) % this.samples.length;
+            this.size = Math.min(this.size + 1, this.samples.length);
+            this.count++;
+            this.total += nanos;
+            this.max = Math.max(this.max, nanos);
+        }
+
+        Statistics snapshot(String sql) {
+            long[] sorted = Arrays.copyOf(this.samples, this.size);
+            Arrays.sort(sorted);
+            return new Statistics(sql, this.count, this.count == 0 ? 0 : this.total / this.count, this.max,
+                    percentile(sorted, 50), percentile(sorted, 95), percentile(sorted, 99));
+        }
+
+        private static long percentile(long[] sorted, int percentile) {
+            if (sorted.length == 0) {
+                return 0;
+            }
+            int index = (int) Math.ceil(percentile / 100.0 * sorted.length) - 1;
+            return sorted[Math.max(0, Math.min(sorted.length - 1, index))];
+        }
+    }
+}
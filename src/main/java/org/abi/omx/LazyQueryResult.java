@@ -0,0 +1,11 @@
+package org.abi.omx;
+
+import java.io.Closeable;
+
+/**
+ * Query result which keeps the cursor open and maps rows on demand. It must be closed when it is not needed anymore.
+ */
+public interface LazyQueryResult<T> extends QueryResult<T>, Closeable {
+    @Override
+    void close();
+}
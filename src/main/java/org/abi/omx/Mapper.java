@@ -1,22 +1,35 @@
 package org.abi.omx;
 
 import android.database.Cursor;
+import android.database.sqlite.SQLiteProgram;
 
+import java.lang.reflect.Field;
 import java.nio.ByteBuffer;
 import java.util.ArrayList;
-import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
  * Created by abi on 20.05.15.
  */
 public class Mapper {
+    private static final int MAX_PLANS = 128;
     private static Mapper instance = new Mapper();
-    private Map<Class<?>, TypeResolver<?>> types;
+    private final Map<Class<?>, TypeResolver<?>> types;
+    private final Map<String, RowPlan<?>> plans;
 
     private Mapper() {
-        this.types = new HashMap<Class<?>, TypeResolver<?>>();
+        this.types = new ConcurrentHashMap<Class<?>, TypeResolver<?>>();
+        this.plans = new LinkedHashMap<String, RowPlan<?>>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, RowPlan<?>> eldest) {
+                return this.size() > MAX_PLANS;
+            }
+        };
 
         // Handling Strings
         this.registerTypeResolver(String.class, new TypeResolver<String>() {
@@ -38,27 +51,31 @@ public class Mapper {
 
         // Handling bytes
         this.registerTypeResolver(Byte.class, new ByteTypeResolver());
-        this.registerTypeResolver(byte.class, new ByteTypeResolver());
+        this.registerTypeResolver(byte.class, new PrimitiveByteTypeResolver());
 
         // Handling shorts
         this.registerTypeResolver(Short.class, new ShortTypeResolver());
-        this.registerTypeResolver(short.class, new ShortTypeResolver());
+        this.registerTypeResolver(short.class, new PrimitiveShortTypeResolver());
 
         // Handling ints
         this.registerTypeResolver(Integer.class, new IntegerTypeResolver());
-        this.registerTypeResolver(int.class, new IntegerTypeResolver());
+        this.registerTypeResolver(int.class, new PrimitiveIntegerTypeResolver());
 
         // Handling longs
         this.registerTypeResolver(Long.class, new LongTypeResolver());
-        this.registerTypeResolver(long.class, new LongTypeResolver());
+        this.registerTypeResolver(long.class, new PrimitiveLongTypeResolver());
 
         // Handling doubles
         this.registerTypeResolver(Double.class, new DoubleTypeResolver());
-        this.registerTypeResolver(double.class, new DoubleTypeResolver());
+        this.registerTypeResolver(double.class, new PrimitiveDoubleTypeResolver());
 
         // Handling floats
         this.registerTypeResolver(Float.class, new FloatTypeResolver());
-        this.registerTypeResolver(float.class, new FloatTypeResolver());
+        this.registerTypeResolver(float.class, new PrimitiveFloatTypeResolver());
+
+        // Handling booleans
+        this.registerTypeResolver(Boolean.class, new BooleanTypeResolver());
+        this.registerTypeResolver(boolean.class, new PrimitiveBooleanTypeResolver());
 
         // Handling byte arrays
         this.registerTypeResolver(byte[].class, new TypeResolver<byte[]>() {
@@ -105,8 +122,16 @@ public class Mapper {
         return instance;
     }
 
+    /**
+     * Registers or replaces the resolver of a type and drops the cached row plans, so following queries use it. The
+     * columns of an entity keep the resolvers they had when the entity was first used, since they also decide the
+     * column types; register resolvers for entity fields before creating tables or using stores.
+     */
     public void registerTypeResolver(Class<?> cls, TypeResolver<?> resolver) {
         this.types.put(cls, resolver);
+        synchronized (this.plans) {
+            this.plans.clear();
+        }
     }
 
     public <T> TypeResolver<T> getTypeResolver(Class<T> cls) throws OmxException {
@@ -117,6 +142,28 @@ public class Mapper {
         return (TypeResolver<T>) resolver;
     }
 
+    /**
+     * Returns the resolver of the class, or else of its nearest superclass or interface with a resolver, e.g. the
+     * ByteBuffer resolver for the HeapByteBuffer returned by ByteBuffer.wrap.
+     */
+    TypeResolver<?> findTypeResolver(Class<?> cls) {
+        for (Class<?> current = cls; current != null; current = current.getSuperclass()) {
+            TypeResolver<?> resolver = this.types.get(current);
+            if (resolver != null) {
+                return resolver;
+            }
+        }
+        for (Class<?> current = cls; current != null; current = current.getSuperclass()) {
+            for (Class<?> type : current.getInterfaces()) {
+                TypeResolver<?> resolver = this.findTypeResolver(type);
+                if (resolver != null) {
+                    return resolver;
+                }
+            }
+        }
+        return null;
+    }
+
     public <T> T mapOne(Cursor cursor, Class<T> cls) throws OmxException {
         if (cursor.getCount() == 0) {
             return null;
@@ -126,34 +173,88 @@ public class Mapper {
             throw new OmxException("More than one row to fetch.");
         }
         cursor.moveToFirst();
-        return this.mapTo(cursor, cls);
+        return this.map(cursor, this.getPlan(cursor, cls));
+    }
+
+    public <T> QueryResult<T> mapMany(Cursor cursor, Class<T> cls) throws OmxException {
+        DefaultQueryResult<T> results = new DefaultQueryResult<T>();
+        int count = cursor.getCount();
+        if (count == 0) {
+            return results;
+        }
+        RowPlan<T> plan = this.getPlan(cursor, cls);
+        results.ensureCapacity(count);
+        cursor.moveToFirst();
+        for (int pos = 0; pos < count; pos++) {
+            results.add(this.map(cursor, plan));
+            cursor.moveToNext();
+        }
+        return results;
+    }
+
+    /**
+     * Returns the plan to map the rows of the cursor to the given class. Plans are cached by class and the column
+     * names of the cursor, so the column lookups are only done once per distinct result shape.
+     */
+    <T> RowPlan<T> getPlan(Cursor cursor, Class<T> cls) throws OmxException {
+        String[] columnNames = cursor.getColumnNames();
+        StringBuilder key = new StringBuilder(cls.getName());
+        for (String columnName : columnNames) {
+            key.append('|').append(columnName);
+        }
+        String signature = key.toString();
+        RowPlan<T> plan;
+        synchronized (this.plans) {
+            plan = (RowPlan<T>) this.plans.get(signature);
+        }
+        if (plan == null) {
+            plan = this.createPlan(cursor, cls);
+            synchronized (this.plans) {
+                this.plans.put(signature, plan);
+            }
+        }
+        return plan;
     }
 
-    private  <T> T mapTo(Cursor cursor, Class<T> cls) throws OmxException {
+    private <T> RowPlan<T> createPlan(Cursor cursor, Class<T> cls) throws OmxException {
+        RowPlan<T> plan = new RowPlan<T>();
+        plan.type = cls;
         if (this.types.containsKey(cls)) {
             if (cursor.getColumnCount() > 1) {
                 throw new OmxException("More than one column to extract.");
             }
-            TypeResolver<T> resolver = this.getTypeResolver(cls);
-            return resolver.fromSQL(cursor, 0);
+            plan.resolver = this.getTypeResolver(cls);
+            return plan;
         }
-        if (Entity.class.isAssignableFrom(cls)) {
-            Class<? extends Entity> entityClass = (Class<? extends Entity>) cls;
-            TableDescriptor tableDescriptor = ReflectionHelper.getInstance().probeTable(entityClass);
-            return (T) this.map(cursor, entityClass, tableDescriptor);
+        if (!Entity.class.isAssignableFrom(cls)) {
+            throw new OmxException(String.format("Cannot map type [%s].", cls.getName()));
         }
 
-        throw new OmxException(String.format("Cannot map type [%s].", cls.getName()));
-    }
-
-    public <T> QueryResult<T> mapMany(Cursor cursor, Class<T> cls) throws OmxException {
-        DefaultQueryResult<T> results = new DefaultQueryResult<T>();
-        cursor.moveToFirst();
-        for (int pos = 0; pos < cursor.getCount(); pos++) {
-            results.add(this.mapTo(cursor, cls));
-            cursor.moveToNext();
+        plan.tableDescriptor = ReflectionHelper.getInstance().probeTable((Class<? extends Entity>) cls);
+        List<FieldDescriptor> fieldDescriptors = new ArrayList<FieldDescriptor>();
+        List<Integer> indexes = new ArrayList<Integer>();
+        for (FieldDescriptor fieldDescriptor : plan.tableDescriptor.fieldDescriptors) {
+            int index = cursor.getColumnIndex(fieldDescriptor.name);
+            if (index >= 0) {
+                fieldDescriptors.add(fieldDescriptor);
+                indexes.add(index);
+            }
         }
-        return results;
+        int size = fieldDescriptors.size();
+        plan.indexes = new int[size];
+        plan.slots = new int[size];
+        plan.fields = new Field[size];
+        plan.resolvers = new TypeResolver[size];
+        plan.primitives = new PrimitiveTypeResolver[size];
+        for (int i = 0; i < size; i++) {
+            FieldDescriptor fieldDescriptor = fieldDescriptors.get(i);
+            plan.indexes[i] = indexes.get(i);
+            plan.slots[i] = fieldDescriptor.slot;
+            plan.fields[i] = fieldDescriptor.field;
+            plan.resolvers[i] = (TypeResolver<Object>) fieldDescriptor.resolver;
+            plan.primitives[i] = fieldDescriptor.primitive;
+        }
+        return plan;
     }
 
     public List<List<Map.Entry<String, Object>>> mapMany(Cursor cursor) throws OmxException {
@@ -185,22 +286,60 @@ public class Mapper {
         return null;
     }
 
-    private <T> T map(Cursor cursor, Class<T> cls, TableDescriptor tableDescriptor) throws OmxException {
+    <T> T map(Cursor cursor, RowPlan<T> plan) throws OmxException {
+        if (plan.resolver != null) {
+            return plan.resolver.fromSQL(cursor, 0);
+        }
+        TableDescriptor tableDescriptor = plan.tableDescriptor;
+        T entity;
+        if (tableDescriptor.adapter != null) {
+            entity = (T) tableDescriptor.adapter.newInstance();
+        } else if (tableDescriptor.factory != null) {
+            entity = (T) tableDescriptor.factory.create();
+        } else {
+            try {
+                entity = plan.type.newInstance();
+            } catch (IllegalAccessException e) {
+                throw new OmxException(e);
+            } catch (InstantiationException e) {
+                throw new OmxException(e);
+            }
+        }
+        this.mapInto(cursor, plan, entity);
+        return entity;
+    }
+
+    /**
+     * Maps the current row into the given entity and returns it. Single value results and a null target are mapped
+     * to a new instance.
+     */
+    <T> T map(Cursor cursor, RowPlan<T> plan, T target) throws OmxException {
+        if (target == null || plan.resolver != null) {
+            return this.map(cursor, plan);
+        }
+        this.mapInto(cursor, plan, target);
+        return target;
+    }
+
+    private <T> void mapInto(Cursor cursor, RowPlan<T> plan, T entity) throws OmxException {
+        int[] indexes = plan.indexes;
+        EntityAdapter<Entity> adapter = plan.tableDescriptor.adapter;
+        if (adapter != null) {
+            for (int i = 0; i < indexes.length; i++) {
+                adapter.read(cursor, indexes[i], (Entity) entity, plan.slots[i]);
+            }
+            return;
+        }
         try {
-            T entity = cls.newInstance();
-            for (FieldDescriptor fieldDescriptor : tableDescriptor.fieldDescriptors) {
-                int index = cursor.getColumnIndex(fieldDescriptor.name);
-                //System.out.println(String.format("%s:%d", fieldDescriptor.name, index));
-                if (index >= 0) {
-                    Object value = this.getTypeResolver(fieldDescriptor.type).fromSQL(cursor, index);
-                    fieldDescriptor.field.set(entity, value);
+            for (int i = 0; i < indexes.length; i++) {
+                if (plan.primitives[i] != null) {
+                    plan.primitives[i].read(cursor, indexes[i], entity, plan.fields[i]);
+                } else {
+                    plan.fields[i].set(entity, plan.resolvers[i].fromSQL(cursor, indexes[i]));
                 }
             }
-            return entity;
         } catch (IllegalAccessException e) {
             throw new OmxException(e);
-        } catch (InstantiationException e) {
-            throw new OmxException(e);
         }
     }
 
@@ -307,22 +446,337 @@ class FloatTypeResolver implements Mapper.TypeResolver<Float> {
 
     @Override
     public Float fromSQL(Cursor cursor, int index) {
-        return ((Double) cursor.getDouble(index)).floatValue();
+        return cursor.getFloat(index);
+    }
+
+    @Override
+    public Object toSQL(Float value) {
+        return value.doubleValue();
+    }
+}
+
+class BooleanTypeResolver implements Mapper.TypeResolver<Boolean> {
+    @Override
+    public String getSQLType() {
+        return "INTEGER";
+    }
+
+    @Override
+    public Boolean fromSQL(Cursor cursor, int index) {
+        return cursor.getInt(index) != 0;
+    }
+
+    @Override
+    public Object toSQL(Boolean value) {
+        return value ? 1L : 0L;
+    }
+}
+
+/**
+ * Resolver of a primitive field type. Besides the boxing {@link Mapper.TypeResolver} contract it reads and binds the
+ * field directly with the typed accessors of {@link Field}, so mapping and writing rows allocates nothing.
+ */
+abstract class PrimitiveTypeResolver<T> implements Mapper.TypeResolver<T> {
+    public abstract void read(Cursor cursor, int index, Object entity, Field field) throws IllegalAccessException;
+
+    public abstract void bind(SQLiteProgram program, int index, Object entity, Field field)
+            throws IllegalAccessException;
+}
+
+class PrimitiveByteTypeResolver extends PrimitiveTypeResolver<Byte> {
+    @Override
+    public String getSQLType() {
+        return "INTEGER";
+    }
+
+    @Override
+    public Byte fromSQL(Cursor cursor, int index) {
+        return (byte) cursor.getShort(index);
+    }
+
+    @Override
+    public Object toSQL(Byte value) {
+        return value;
+    }
+
+    @Override
+    public void read(Cursor cursor, int index, Object entity, Field field) throws IllegalAccessException {
+        field.setByte(entity, (byte) cursor.getShort(index));
+    }
+
+    @Override
+    public void bind(SQLiteProgram program, int index, Object entity, Field field) throws IllegalAccessException {
+        program.bindLong(index, field.getByte(entity));
+    }
+}
+
+class PrimitiveShortTypeResolver extends PrimitiveTypeResolver<Short> {
+    @Override
+    public String getSQLType() {
+        return "INTEGER";
+    }
+
+    @Override
+    public Short fromSQL(Cursor cursor, int index) {
+        return cursor.getShort(index);
+    }
+
+    @Override
+    public Object toSQL(Short value) {
+        return value;
+    }
+
+    @Override
+    public void read(Cursor cursor, int index, Object entity, Field field) throws IllegalAccessException {
+        field.setShort(entity, cursor.getShort(index));
+    }
+
+    @Override
+    public void bind(SQLiteProgram program, int index, Object entity, Field field) throws IllegalAccessException {
+        program.bindLong(index, field.getShort(entity));
+    }
+}
+
+class PrimitiveIntegerTypeResolver extends PrimitiveTypeResolver<Integer> {
+    @Override
+    public String getSQLType() {
+        return "INTEGER";
+    }
+
+    @Override
+    public Integer fromSQL(Cursor cursor, int index) {
+        return cursor.getInt(index);
+    }
+
+    @Override
+    public Object toSQL(Integer value) {
+        return value;
+    }
+
+    @Override
+    public void read(Cursor cursor, int index, Object entity, Field field) throws IllegalAccessException {
+        field.setInt(entity, cursor.getInt(index));
+    }
+
+    @Override
+    public void bind(SQLiteProgram program, int index, Object entity, Field field) throws IllegalAccessException {
+        program.bindLong(index, field.getInt(entity));
+    }
+}
+
+class PrimitiveLongTypeResolver extends PrimitiveTypeResolver<Long> {
+    @Override
+    public String getSQLType() {
+        return "NUMERIC";
+    }
+
+    @Override
+    public Long fromSQL(Cursor cursor, int index) {
+        return cursor.getLong(index);
+    }
+
+    @Override
+    public Object toSQL(Long value) {
+        return value;
+    }
+
+    @Override
+    public void read(Cursor cursor, int index, Object entity, Field field) throws IllegalAccessException {
+        field.setLong(entity, cursor.getLong(index));
+    }
+
+    @Override
+    public void bind(SQLiteProgram program, int index, Object entity, Field field) throws IllegalAccessException {
+        program.bindLong(index, field.getLong(entity));
+    }
+}
+
+class PrimitiveDoubleTypeResolver extends PrimitiveTypeResolver<Double> {
+    @Override
+    public String getSQLType() {
+        return "REAL";
+    }
+
+    @Override
+    public Double fromSQL(Cursor cursor, int index) {
+        return cursor.getDouble(index);
+    }
+
+    @Override
+    public Object toSQL(Double value) {
+        return value;
+    }
+
+    @Override
+    public void read(Cursor cursor, int index, Object entity, Field field) throws IllegalAccessException {
+        field.setDouble(entity, cursor.getDouble(index));
+    }
+
+    @Override
+    public void bind(SQLiteProgram program, int index, Object entity, Field field) throws IllegalAccessException {
+        program.bindDouble(index, field.getDouble(entity));
+    }
+}
+
+class PrimitiveFloatTypeResolver extends PrimitiveTypeResolver<Float> {
+    @Override
+    public String getSQLType() {
+        return "REAL";
+    }
+
+    @Override
+    public Float fromSQL(Cursor cursor, int index) {
+        return cursor.getFloat(index);
     }
 
     @Override
     public Object toSQL(Float value) {
         return value.doubleValue();
     }
+
+    @Override
+    public void read(Cursor cursor, int index, Object entity, Field field) throws IllegalAccessException {
+        field.setFloat(entity, cursor.getFloat(index));
+    }
+
+    @Override
+    public void bind(SQLiteProgram program, int index, Object entity, Field field) throws IllegalAccessException {
+        program.bindDouble(index, field.getFloat(entity));
+    }
+}
+
+class PrimitiveBooleanTypeResolver extends PrimitiveTypeResolver<Boolean> {
+    @Override
+    public String getSQLType() {
+        return "INTEGER";
+    }
+
+    @Override
+    public Boolean fromSQL(Cursor cursor, int index) {
+        return cursor.getInt(index) != 0;
+    }
+
+    @Override
+    public Object toSQL(Boolean value) {
+        return value ? 1L : 0L;
+    }
+
+    @Override
+    public void read(Cursor cursor, int index, Object entity, Field field) throws IllegalAccessException {
+        field.setBoolean(entity, cursor.getInt(index) != 0);
+    }
+
+    @Override
+    public void bind(SQLiteProgram program, int index, Object entity, Field field) throws IllegalAccessException {
+        program.bindLong(index, field.getBoolean(entity) ? 1 : 0);
+    }
+}
+
+class RowPlan<T> {
+    public Class<T> type;
+    public Mapper.TypeResolver<T> resolver;
+    public TableDescriptor tableDescriptor;
+    public int[] indexes;
+    public int[] slots;
+    public Field[] fields;
+    public Mapper.TypeResolver<Object>[] resolvers;
+    public PrimitiveTypeResolver<?>[] primitives;
 }
 
 class DefaultQueryResult<T> extends ArrayList<T> implements QueryResult<T> {
+    DefaultQueryResult() {
+    }
+
+    DefaultQueryResult(QueryResult<T> result) {
+        super(result.count());
+        for (T item : result) {
+            this.add(item);
+        }
+    }
+
     @Override
     public int count() {
         return this.size();
     }
 }
 
+class CursorQueryResult<T> implements LazyQueryResult<T> {
+    private final Cursor cursor;
+    private final RowPlan<T> plan;
+    private final boolean recycle;
+    private T recycled;
+
+    public CursorQueryResult(Cursor cursor, Class<T> cls, boolean recycle) throws OmxException {
+        this.cursor = cursor;
+        this.recycle = recycle;
+        try {
+            this.plan = Mapper.getInstance().getPlan(cursor, cls);
+        } catch (OmxException e) {
+            cursor.close();
+            throw e;
+        }
+    }
+
+    @Override
+    public int count() {
+        return this.cursor.getCount();
+    }
+
+    /**
+     * Maps the row at the given position. When the result recycles its entity the same instance is returned for
+     * every row, so it is only valid until the next call.
+     */
+    @Override
+    public T get(int index) {
+        if (!this.cursor.moveToPosition(index)) {
+            throw new IndexOutOfBoundsException(String.format("Invalid index [%d], size is [%d].", index, this.count()));
+        }
+        return this.mapCurrent();
+    }
+
+    @Override
+    public Iterator<T> iterator() {
+        return new Iterator<T>() {
+            private int position = 0;
+
+            @Override
+            public boolean hasNext() {
+                return this.position < CursorQueryResult.this.count();
+            }
+
+            @Override
+            public T next() {
+                if (!this.hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                return CursorQueryResult.this.get(this.position++);
+            }
+
+            @Override
+            public void remove() {
+                throw new UnsupportedOperationException();
+            }
+        };
+    }
+
+    @Override
+    public void close() {
+        this.cursor.close();
+    }
+
+    private T mapCurrent() {
+        try {
+            T result = Mapper.getInstance().map(this.cursor, this.plan, this.recycled);
+            if (this.recycle) {
+                this.recycled = result;
+            }
+            return result;
+        } catch (OmxException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
+
 class DefaultEntry implements Map.Entry<String, Object> {
     private String key;
     private Object value;
@@ -0,0 +1,39 @@
+package org.abi.omx;
+
+/**
+ * One page of a keyset paginated query. The token of the next page holds the ordering values of the last row and is
+ * passed to {@link Query#after(Page.Token)} to fetch the following page.
+ */
+public class Page<T> {
+    private final QueryResult<T> items;
+    private final Token nextToken;
+
+    public Page(QueryResult<T> items, Token nextToken) {
+        this.items = items;
+        this.nextToken = nextToken;
+    }
+
+    public QueryResult<T> getItems() {
+        return this.items;
+    }
+
+    public boolean hasNext() {
+        return this.nextToken != null;
+    }
+
+    public Token getNextToken() {
+        return this.nextToken;
+    }
+
+    public static final class Token {
+        private final Object[] values;
+
+        public Token(Object... values) {
+            this.values = values.clone();
+        }
+
+        public Object[] getValues() {
+            return this.values.clone();
+        }
+    }
+}
@@ -0,0 +1,78 @@
+package org.abi.omx;
+
+import android.database.sqlite.SQLiteStatement;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Query whose SQL is compiled once by {@link Query#prepare()}. It can be executed many times with new values for the
+ * where clause, which bind to the same SQL text so SQLite reuses the statement it has already prepared.
+ */
+public abstract class PreparedQuery<T> extends RawQuery<T> {
+    private final String sql;
+    private final String countSQL;
+    private final Object[] values;
+    private final int variables;
+
+    protected PreparedQuery(Schema schema, Class<T> cls, String sql, Object[] values, int variables) {
+        this(schema, cls, sql, String.format("SELECT count(*) FROM (%s)", sql), values, variables);
+    }
+
+    PreparedQuery(Schema schema, Class<T> cls, String sql, String countSQL, Object[] values, int variables) {
+        super(schema, cls);
+        this.sql = sql;
+        this.countSQL = countSQL;
+        this.values = values;
+        this.variables = variables;
+    }
+
+    /**
+     * Returns a query with the same SQL and the given values for the where clause. The values of having, limit and
+     * offset stay as they were when the query was prepared.
+     */
+    public PreparedQuery<T> bind(Object... args) throws OmxException {
+        if (args.length != this.variables) {
+            throw new OmxException(String.format("Query expects [%d] values but [%d] were given.",
+                    this.variables, args.length));
+        }
+        Object[] values = this.values.clone();
+        System.arraycopy(args, 0, values, 0, args.length);
+        return new DefaultPreparedQuery<T>(this.getSchema(), this.getResultClass(), this.sql, this.countSQL, values,
+                this.variables);
+    }
+
+    @Override
+    public long count() throws OmxException {
+        StatementCache statementCache = this.getSchema().getStatementCache();
+        SQLiteStatement statement = statementCache.acquire(this.countSQL);
+        try {
+            QueryProbe probe =
+                    QueryProbe.start(this.getSchema(), QueryEvent.Kind.READ, this.countSQL, this.values.length);
+            for (int i = 0; i < this.values.length; i++) {
+                Binder.bind(statement, i + 1, this.values[i]);
+            }
+            long result = statement.simpleQueryForLong();
+            if (probe != null) {
+                probe.finish(1);
+            }
+            return result;
+        } finally {
+            statementCache.release(this.countSQL, statement);
+        }
+    }
+
+    @Override
+    protected String compile() {
+        return this.sql;
+    }
+
+    @Override
+    protected Iterable<Object> getValues() {
+        List<Object> args = new ArrayList<Object>(this.values.length);
+        for (Object value : this.values) {
+            args.add(value);
+        }
+        return args;
+    }
+}
@@ -1,12 +1,15 @@
 package org.abi.omx;
 
 import java.util.ArrayList;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Set;
 
 /**
  * Created by abi on 20.05.15.
  */
 public abstract class Query<T> extends RawQuery<T> {
+    public static final long DEFAULT_DEBOUNCE = 100;
 
     private String fields;
     private String tables;
@@ -18,6 +21,14 @@ public abstract class Query<T> extends RawQuery<T> {
     private Long limit;
     private String havingCriteria;
     private Object[] havingArgs;
+    private List<FieldDescriptor> pageColumns;
+    private boolean pageDescending;
+    private int pageSize;
+    private Object[] pageAfter;
+    private boolean pageProbe;
+    private boolean cached;
+    private Set<String> dependencies;
+
     protected Query(Schema schema, Class<T> cls) {
         super(schema, cls);
     }
@@ -64,23 +75,261 @@ public abstract class Query<T> extends RawQuery<T> {
         return this;
     }
 
+    /**
+     * Allows the results of this query to be kept in the query cache of the schema, see
+     * {@link Schema#enableQueryCache(int)}. The tables it depends on are taken from the from clause; queries reading
+     * from sub queries are not cached unless the tables are given explicitly with {@link #cached(String...)}.
+     * Every call returns its own result list, but the entities in it are shared with the cache and other callers, so
+     * they must be treated as read-only.
+     */
+    public Query<T> cached() {
+        this.cached = true;
+        this.dependencies = null;
+        return this;
+    }
+
+    public Query<T> cached(String... tables) {
+        this.cached = true;
+        this.dependencies = new HashSet<String>();
+        for (String table : tables) {
+            this.dependencies.add(QueryCache.normalize(table));
+        }
+        return this;
+    }
+
+    @Override
+    protected Set<String> getDependencies() {
+        if (!this.cached) {
+            return null;
+        }
+        if (this.dependencies != null) {
+            return this.dependencies;
+        }
+        return this.getSourceTables();
+    }
+
+    private Set<String> getSourceTables() {
+        if (this.tables == null || this.tables.indexOf('(') >= 0) {
+            return null;
+        }
+        Set<String> results = new HashSet<String>();
+        for (String source : this.tables.split(",")) {
+            for (String part : source.split("(?i)\\bjoin\\b")) {
+                String[] tokens = part.trim().split("\\s+");
+                if (tokens[0].length() > 0) {
+                    results.add(QueryCache.normalize(tokens[0].replaceAll("[\"`\\[\\]]", "")));
+                }
+            }
+        }
+        return results;
+    }
+
+    public Subscription observe(QueryObserver<T> observer) throws OmxException {
+        return this.observe(observer, DEFAULT_DEBOUNCE);
+    }
+
+    public Subscription observe(QueryObserver<T> observer, long debounceMillis) throws OmxException {
+        Set<String> sources = this.getSourceTables();
+        if (sources == null) {
+            throw new OmxException(String.format("Cannot find the tables of [%s], pass them to observe.", this.tables));
+        }
+        return this.observe(observer, debounceMillis, sources.toArray(new String[sources.size()]));
+    }
+
+    /**
+     * Runs the query on the notification thread of the schema and again whenever a store writes to one of the given
+     * tables, at most once per debounce interval. The query is prepared at this point, later changes to this object
+     * do not affect the observation.
+     */
+    public Subscription observe(QueryObserver<T> observer, long debounceMillis, String... tables) {
+        Set<String> sources = new HashSet<String>();
+        for (String table : tables) {
+            sources.add(QueryCache.normalize(table));
+        }
+        QueryObservation<T> observation =
+                new QueryObservation<T>(this.getSchema(), this.prepare(), sources, observer, debounceMillis);
+        observation.start();
+        return observation;
+    }
+
+    /**
+     * Compiles the query once. The returned query keeps the SQL text and can be executed again with new values for
+     * the where clause through {@link PreparedQuery#bind(Object...)}.
+     */
+    public PreparedQuery<T> prepare() {
+        String sql = this.compile();
+        List<Object> args = new ArrayList<Object>();
+        for (Object value : this.getValues()) {
+            args.add(value);
+        }
+        int variables = this.values == null ? 0 : this.values.length;
+        return new DefaultPreparedQuery<T>(this.getSchema(), this.getResultClass(), sql, args.toArray(), variables);
+    }
+
+    public Query<T> pageBy(String column, int size) throws OmxException {
+        return this.pageBy(column, false, size);
+    }
+
+    /**
+     * Enables keyset pagination ordered by the given column and then by the primary keys of the entity. Pages are
+     * fetched with {@link #getPage()}, seeking past the previous page instead of skipping rows with OFFSET, so every
+     * page costs the same. The column should not contain nulls and any orderBy of the query is replaced. An offset
+     * only skips rows of the first page; later pages continue right after their token.
+     */
+    public Query<T> pageBy(String column, boolean descending, int size) throws OmxException {
+        if (!Entity.class.isAssignableFrom(this.getResultClass())) {
+            throw new OmxException(String.format("Cannot page by [%s], type [%s] is not an entity.",
+                    column, this.getResultClass().getName()));
+        }
+        if (size <= 0) {
+            throw new OmxException(String.format("Invalid page size [%d].", size));
+        }
+        TableDescriptor tableDescriptor =
+                ReflectionHelper.getInstance().probeTable((Class<? extends Entity>) this.getResultClass());
+        List<FieldDescriptor> columns = new ArrayList<FieldDescriptor>();
+        for (FieldDescriptor fieldDescriptor : tableDescriptor.fieldDescriptors) {
+            if (fieldDescriptor.name.equals(column)) {
+                columns.add(fieldDescriptor);
+            }
+        }
+        if (columns.isEmpty()) {
+            throw new OmxException(String.format("Entity [%s] has no column [%s].", tableDescriptor.name, column));
+        }
+        for (FieldDescriptor fieldDescriptor : tableDescriptor.keyDescriptors) {
+            if (!columns.contains(fieldDescriptor)) {
+                columns.add(fieldDescriptor);
+            }
+        }
+        this.pageColumns = columns;
+        this.pageDescending = descending;
+        this.pageSize = size;
+        this.pageAfter = null;
+        return this;
+    }
+
+    /**
+     * Continues after the row with the given value of the paging column and the given primary keys.
+     */
+    public Query<T> after(Object columnValue, Object... keyValues) {
+        Object[] values = new Object[keyValues.length + 1];
+        values[0] = columnValue;
+        System.arraycopy(keyValues, 0, values, 1, keyValues.length);
+        return this.after(new Page.Token(values));
+    }
+
+    public Query<T> after(Page.Token token) {
+        this.pageAfter = token == null ? null : token.getValues();
+        return this;
+    }
+
+    public Page<T> getPage() throws OmxException {
+        if (this.pageColumns == null) {
+            throw new OmxException("Call pageBy before fetching pages.");
+        }
+        if (this.pageAfter != null && this.pageAfter.length != this.pageColumns.size()) {
+            throw new OmxException(String.format("Page token has [%d] values but [%d] are expected.",
+                    this.pageAfter.length, this.pageColumns.size()));
+        }
+        QueryResult<T> rows;
+        this.pageProbe = true;
+        try {
+            rows = this.getMany();
+        } finally {
+            this.pageProbe = false;
+        }
+        if (rows.count() <= this.pageSize) {
+            return new Page<T>(rows, null);
+        }
+        DefaultQueryResult<T> items = new DefaultQueryResult<T>();
+        for (int i = 0; i < this.pageSize; i++) {
+            items.add(rows.get(i));
+        }
+        return new Page<T>(items, this.createToken(items.get(this.pageSize - 1)));
+    }
+
+    private Page.Token createToken(T last) throws OmxException {
+        Object[] values = new Object[this.pageColumns.size()];
+        try {
+            for (int i = 0; i < values.length; i++) {
+                FieldDescriptor fieldDescriptor = this.pageColumns.get(i);
+                Object value = fieldDescriptor.field.get(last);
+                values[i] = value == null ? null : ((Mapper.TypeResolver<Object>) fieldDescriptor.resolver).toSQL(value);
+            }
+        } catch (IllegalAccessException e) {
+            throw new OmxException(e);
+        }
+        return new Page.Token(values);
+    }
+
+    /**
+     * Creates the seek condition, as a row value comparison when SQLite supports it (3.15) and otherwise expanded to
+     * c1 > ? OR (c1 = ? AND (c2 > ? ...)).
+     */
+    private String compileSeek() {
+        String operator = this.pageDescending ? "<" : ">";
+        StringBuilder builder = new StringBuilder();
+        if (this.getSchema().getSQLiteVersion() >= 3015000) {
+            StringBuilder values = new StringBuilder();
+            for (FieldDescriptor fieldDescriptor : this.pageColumns) {
+                if (builder.length() > 0) {
+                    builder.append(", ");
+                    values.append(", ");
+                }
+                builder.append(fieldDescriptor.name);
+                values.append("?");
+            }
+            return String.format("(%s) %s (%s)", builder, operator, values);
+        }
+        int last = this.pageColumns.size() - 1;
+        for (int i = 0; i < last; i++) {
+            String name = this.pageColumns.get(i).name;
+            builder.append(String.format("%s %s ? OR (%s = ? AND (", name, operator, name));
+        }
+        builder.append(String.format("%s %s ?", this.pageColumns.get(last).name, operator));
+        for (int i = 0; i < last; i++) {
+            builder.append("))");
+        }
+        return builder.toString();
+    }
+
+    private String compilePageOrder() {
+        StringBuilder builder = new StringBuilder();
+        for (FieldDescriptor fieldDescriptor : this.pageColumns) {
+            if (builder.length() > 0) {
+                builder.append(", ");
+            }
+            builder.append(fieldDescriptor.name);
+            builder.append(this.pageDescending ? " desc" : " asc");
+        }
+        return builder.toString();
+    }
+
     @Override
     protected String compile() {
         StringBuilder builder = new StringBuilder();
 
         builder.append(String.format("SELECT %s FROM %s ", fields, tables));
+        boolean seek = this.pageColumns != null && this.pageAfter != null;
         if (criteria != null && criteria.length() > 0) {
-            builder.append(String.format("WHERE %s", criteria));
+            if (seek) {
+                builder.append(String.format("WHERE (%s) AND (%s)", criteria, this.compileSeek()));
+            } else {
+                builder.append(String.format("WHERE %s", criteria));
+            }
+        } else if (seek) {
+            builder.append(String.format("WHERE %s", this.compileSeek()));
         }
 
         if (this.groups != null && this.groups.length() > 0) {
             builder.append(String.format("\n\t group by %s", this.groups));
             if (this.havingCriteria != null && havingCriteria.length() > 0) {
-                builder.append(String.format("having %s", havingCriteria));
+                builder.append(String.format("\n\t having %s", havingCriteria));
             }
         }
 
-        if (this.orders != null && this.orders.length() > 0) {
+        if (this.pageColumns != null) {
+            builder.append(String.format("\n\t order by %s", this.compilePageOrder()));
+        } else if (this.orders != null && this.orders.length() > 0) {
             builder.append(String.format("\n\t order by %s", this.orders));
         }
 
@@ -88,7 +337,7 @@ public abstract class Query<T> extends RawQuery<T> {
             this.limit = Long.MAX_VALUE;
         }
 
-        if(this.limit != null) {
+        if(this.limit != null || this.pageProbe) {
             builder.append("\n LIMIT ? OFFSET ? ");
         }
 
@@ -105,6 +354,21 @@ public abstract class Query<T> extends RawQuery<T> {
             }
         }
 
+        if (this.pageColumns != null && this.pageAfter != null) {
+            if (this.getSchema().getSQLiteVersion() >= 3015000) {
+                for (Object v : this.pageAfter) {
+                    args.add(v);
+                }
+            } else {
+                int last = this.pageAfter.length - 1;
+                for (int i = 0; i < last; i++) {
+                    args.add(this.pageAfter[i]);
+                    args.add(this.pageAfter[i]);
+                }
+                args.add(this.pageAfter[last]);
+            }
+        }
+
         if (groups != null) {
             if (havingArgs != null) {
                 for (Object v : havingArgs) {
@@ -117,7 +381,10 @@ public abstract class Query<T> extends RawQuery<T> {
             this.limit = Long.MAX_VALUE;
         }
 
-        if (this.limit != null) {
+        if (this.pageProbe) {
+            args.add((long) this.pageSize + 1);
+            args.add(this.offset == null || this.pageAfter != null ? 0L : this.offset);
+        } else if (this.limit != null) {
             args.add(limit);
             if (this.offset == null) {
                 this.offset = new Long(0);
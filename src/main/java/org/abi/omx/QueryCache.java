@@ -0,0 +1,148 @@
+package org.abi.omx;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+
+/**
+ * Results of cached queries keyed by their SQL and values. Every entry records the tables it was read from and is
+ * dropped when one of them is written. The cache holds at most maxRows result rows and evicts the least recently used
+ * entries beyond that.
+ */
+public class QueryCache {
+    private static final Object NULL = new Object();
+
+    private final int maxRows;
+    private final LinkedHashMap<List<Object>, Entry> entries;
+    private int rows;
+    private long generation;
+    private long hits;
+    private long misses;
+    private long evictions;
+    private long invalidations;
+
+    QueryCache(int maxRows) {
+        this.maxRows = maxRows;
+        this.entries = new LinkedHashMap<List<Object>, Entry>(16, 0.75f, true);
+    }
+
+    static List<Object> key(String kind, String sql, Iterable<Object> values) {
+        List<Object> key = new ArrayList<Object>();
+        key.add(kind);
+        key.add(sql);
+        for (Object value : values) {
+            key.add(value);
+        }
+        return key;
+    }
+
+    static String normalize(String table) {
+        return table.toLowerCase(Locale.US);
+    }
+
+    /**
+     * Returns the cached value, {@link #NULL} for a cached null, or null when nothing is cached.
+     */
+    synchronized Object get(List<Object> key) {
+        Entry entry = this.entries.get(key);
+        if (entry == null) {
+            this.misses++;
+            return null;
+        }
+        this.hits++;
+        return entry.value;
+    }
+
+    static <V> V unwrap(Object value) {
+        return value == NULL ? null : (V) value;
+    }
+
+    /**
+     * Returns the current generation, which changes with every invalidation. Read it before running a query and pass
+     * it to {@link #put}, so results read concurrently with a write are not cached.
+     */
+    synchronized long getGeneration() {
+        return this.generation;
+    }
+
+    synchronized void put(List<Object> key, Object value, Set<String> tables, int weight, long generation) {
+        if (generation != this.generation || weight > this.maxRows) {
+            return;
+        }
+        Entry previous = this.entries.put(key, new Entry(value == null ? NULL : value, tables, weight));
+        if (previous != null) {
+            this.rows -= previous.weight;
+        }
+        this.rows += weight;
+        Iterator<Entry> iterator = this.entries.values().iterator();
+        while (this.rows > this.maxRows && iterator.hasNext()) {
+            this.rows -= iterator.next().weight;
+            iterator.remove();
+            this.evictions++;
+        }
+    }
+
+    synchronized void invalidate(String table) {
+        this.generation++;
+        String name = normalize(table);
+        Iterator<Entry> iterator = this.entries.values().iterator();
+        while (iterator.hasNext()) {
+            Entry entry = iterator.next();
+            if (entry.tables.contains(name)) {
+                this.rows -= entry.weight;
+                iterator.remove();
+                this.invalidations++;
+            }
+        }
+    }
+
+    public synchronized void clear() {
+        this.generation++;
+        this.entries.clear();
+        this.rows = 0;
+    }
+
+    public synchronized int size() {
+        return this.entries.size();
+    }
+
+    public synchronized int getRowCount() {
+        return this.rows;
+    }
+
+    public int getMaxRows() {
+        return this.maxRows;
+    }
+
+    public synchronized long getHitCount() {
+        return this.hits;
+    }
+
+    public synchronized long getMissCount() {
+        return this.misses;
+    }
+
+    public synchronized long getEvictionCount() {
+        return this.evictions;
+    }
+
+    public synchronized long getInvalidationCount() {
+        return this.invalidations;
+    }
+
+    private static class Entry {
+        private final Object value;
+        private final Set<String> tables;
+        private final int weight;
+
+        Entry(Object value, Set<String> tables, int weight) {
+            this.value = value;
+            this.tables = Collections.unmodifiableSet(tables);
+            this.weight = weight;
+        }
+    }
+}
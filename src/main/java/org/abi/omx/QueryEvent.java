@@ -0,0 +1,77 @@
+package org.abi.omx;
+
+/**
+ * Describes one statement run by a schema, see {@link QueryListener}. Times are in nanoseconds; the execute time
+ * of a read includes filling the cursor window, the map time converting the rows into objects.
+ */
+public class QueryEvent {
+    public enum Kind {
+        READ, WRITE
+    }
+
+    private final Kind kind;
+    private final String sql;
+    private final int rowCount;
+    private final int bindCount;
+    private final long executeNanos;
+    private final long mapNanos;
+    private final long transactionId;
+
+    public QueryEvent(Kind kind, String sql, int rowCount, int bindCount, long executeNanos, long mapNanos,
+                      long transactionId) {
+        this.kind = kind;
+        this.sql = sql;
+        this.rowCount = rowCount;
+        this.bindCount = bindCount;
+        this.executeNanos = executeNanos;
+        this.mapNanos = mapNanos;
+        this.transactionId = transactionId;
+    }
+
+    public Kind getKind() {
+        return this.kind;
+    }
+
+    /**
+     * Returns the SQL with its ? placeholders; the bound values are not part of the event.
+     */
+    public String getSql() {
+        return this.sql;
+    }
+
+    /**
+     * Rows read, or rows affected by a write.
+     */
+    public int getRowCount() {
+        return this.rowCount;
+    }
+
+    public int getBindCount() {
+        return this.bindCount;
+    }
+
+    public long getExecuteNanos() {
+        return this.executeNanos;
+    }
+
+    public long getMapNanos() {
+        return this.mapNanos;
+    }
+
+    public long getTotalNanos() {
+        return this.executeNanos + this.mapNanos;
+    }
+
+    /**
+     * Id of the transaction the statement ran in, zero outside of transactions.
+     */
+    public long getTransactionId() {
+        return this.transactionId;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%s [%s] rows=%d binds=%d execute=%dns map=%dns transaction=%d", this.kind, this.sql,
+                this.rowCount, this.bindCount, this.executeNanos, this.mapNanos, this.transactionId);
+    }
+}
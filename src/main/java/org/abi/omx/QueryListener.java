@@ -0,0 +1,9 @@
+package org.abi.omx;
+
+/**
+ * Receives an event for every statement a schema runs for queries and stores, on the thread which ran it. Listeners
+ * should return quickly. No events are built while a schema has no listeners.
+ */
+public interface QueryListener {
+    void onQuery(QueryEvent event);
+}
@@ -0,0 +1,83 @@
+package org.abi.omx;
+
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Re-runs a prepared query on the notification thread of the schema whenever one of its tables changed. Changes
+ * arriving while a run is pending are folded into it, so the query runs at most once per debounce interval.
+ */
+class QueryObservation<T> implements TableListener, Subscription, Runnable {
+    private final Schema schema;
+    private final PreparedQuery<T> query;
+    private final Set<String> tables;
+    private final QueryObserver<T> observer;
+    private final long debounceMillis;
+    private final AtomicBoolean scheduled;
+    private volatile boolean cancelled;
+
+    public QueryObservation(Schema schema, PreparedQuery<T> query, Set<String> tables, QueryObserver<T> observer,
+                            long debounceMillis) {
+        this.schema = schema;
+        this.query = query;
+        this.tables = tables;
+        this.observer = observer;
+        this.debounceMillis = debounceMillis;
+        this.scheduled = new AtomicBoolean(false);
+    }
+
+    public void start() {
+        this.schema.addTableListener(this);
+        this.schedule(0);
+    }
+
+    @Override
+    public void onTablesChanged(Set<String> changed) {
+        for (String table : changed) {
+            if (this.tables.contains(QueryCache.normalize(table))) {
+                this.schedule(this.debounceMillis);
+                return;
+            }
+        }
+    }
+
+    @Override
+    public void run() {
+        this.scheduled.set(false);
+        if (this.cancelled) {
+            return;
+        }
+        QueryResult<T> result;
+        try {
+            result = this.query.getMany();
+        } catch (OmxException e) {
+            this.observer.onError(e);
+            return;
+        } catch (RuntimeException e) {
+            this.observer.onError(new OmxException(e));
+            return;
+        }
+        if (!this.cancelled) {
+            this.observer.onChanged(result);
+        }
+    }
+
+    @Override
+    public void cancel() {
+        this.cancelled = true;
+        this.schema.removeTableListener(this);
+    }
+
+    @Override
+    public boolean isCancelled() {
+        return this.cancelled;
+    }
+
+    private void schedule(long delay) {
+        if (this.cancelled || !this.scheduled.compareAndSet(false, true)) {
+            return;
+        }
+        this.schema.getNotifier().schedule(this, delay, TimeUnit.MILLISECONDS);
+    }
+}
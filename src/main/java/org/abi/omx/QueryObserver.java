@@ -0,0 +1,11 @@
+package org.abi.omx;
+
+/**
+ * Receives the results of an observed query, see {@link Query#observe(QueryObserver)}. Both methods are called on the
+ * notification thread of the schema.
+ */
+public interface QueryObserver<T> {
+    void onChanged(QueryResult<T> result);
+
+    void onError(OmxException e);
+}
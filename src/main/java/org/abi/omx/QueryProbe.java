@@ -0,0 +1,76 @@
+package org.abi.omx;
+
+import android.database.Cursor;
+
+/**
+ * Times one statement for the query listeners of a schema. {@link #start} returns null when the schema has no
+ * listeners, so uninstrumented calls only pay for that check.
+ */
+class QueryProbe {
+    private final Schema schema;
+    private final QueryEvent.Kind kind;
+    private final String sql;
+    private final int bindCount;
+    private final long start;
+    private long executed;
+
+    private QueryProbe(Schema schema, QueryEvent.Kind kind, String sql, int bindCount) {
+        this.schema = schema;
+        this.kind = kind;
+        this.sql = sql;
+        this.bindCount = bindCount;
+        this.start = System.nanoTime();
+    }
+
+    public static QueryProbe start(Schema schema, QueryEvent.Kind kind, String sql, int bindCount) {
+        if (!schema.hasQueryListeners()) {
+            return null;
+        }
+        return new QueryProbe(schema, kind, sql, bindCount);
+    }
+
+    public static QueryProbe start(Schema schema, String sql, Iterable<Object> values) {
+        if (!schema.hasQueryListeners()) {
+            return null;
+        }
+        int count = 0;
+        for (Object ignored : values) {
+            count++;
+        }
+        return new QueryProbe(schema, QueryEvent.Kind.READ, sql, count);
+    }
+
+    /**
+     * Reports a write statement which was executed the given number of times with values bound from entities; the
+     * bind count is the number of ? placeholders per execution.
+     */
+    public static void reportWrite(Schema schema, String sql, int executions, int rowCount, long nanos) {
+        schema.onQuery(new QueryEvent(QueryEvent.Kind.WRITE, sql, rowCount, executions * countParameters(sql), nanos, 0,
+                schema.getTransactionId()));
+    }
+
+    private static int countParameters(String sql) {
+        int count = 0;
+        for (int i = 0; i < sql.length(); i++) {
+            if (sql.charAt(i) == '?') {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Ends the execute phase of a read. SQLite only runs the query when the cursor is filled, so this fills it.
+     */
+    public void executed(Cursor cursor) {
+        cursor.getCount();
+        this.executed = System.nanoTime();
+    }
+
+    public void finish(int rowCount) {
+        long now = System.nanoTime();
+        long executed = this.executed == 0 ? now : this.executed;
+        this.schema.onQuery(new QueryEvent(this.kind, this.sql, rowCount, this.bindCount, executed - this.start,
+                now - executed, this.schema.getTransactionId()));
+    }
+}
@@ -2,6 +2,11 @@ package org.abi.omx;
 
 import android.database.Cursor;
 
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Future;
+
 /**
  * Created by abi on 21.05.15.
  */
@@ -27,14 +32,34 @@ public abstract class RawQuery<T> {
 
     protected abstract Iterable<Object> getValues();
 
+    /**
+     * Returns the tables the query reads from when its results may be kept in the query cache of the schema,
+     * otherwise null.
+     */
+    protected Set<String> getDependencies() {
+        return null;
+    }
+
     public long count() throws OmxException {
-        String statment = this.compile();
+        String sql = String.format("SELECT count(*) FROM (%s)", this.compile());
         Iterable<Object> values = this.getValues();
-        String sql = String.format("SELECT count(*) FROM (%s)", statment);
-        Cursor cursor =
-                this.getSchema().executeSQL(sql, values);
+        CacheLookup lookup = this.lookup("count", sql, values);
+        if (lookup != null && lookup.value != null) {
+            return QueryCache.<Long>unwrap(lookup.value);
+        }
+        QueryProbe probe = QueryProbe.start(this.getSchema(), sql, values);
+        Cursor cursor = this.getSchema().executeSQL(sql, values);
         try {
+            if (probe != null) {
+                probe.executed(cursor);
+            }
             Long result = Mapper.getInstance().mapOne(cursor, Long.class);
+            if (probe != null) {
+                probe.finish(1);
+            }
+            if (lookup != null) {
+                lookup.store(result, 1);
+            }
             return result;
         } finally {
             if (cursor != null) {
@@ -44,30 +69,159 @@ public abstract class RawQuery<T> {
     }
 
     public T getOne() throws OmxException {
-        Cursor cursor = this.run();
+        String sql = this.compile();
+        Iterable<Object> values = this.getValues();
+        CacheLookup lookup = this.lookup("one", sql, values);
+        if (lookup != null && lookup.value != null) {
+            return QueryCache.<T>unwrap(lookup.value);
+        }
+        QueryProbe probe = QueryProbe.start(this.getSchema(), sql, values);
+        Cursor cursor = this.getSchema().executeSQL(sql, values);
         try {
+            if (probe != null) {
+                probe.executed(cursor);
+            }
             T result = Mapper.getInstance().mapOne(cursor, this.getResultClass());
+            if (probe != null) {
+                probe.finish(result == null ? 0 : 1);
+            }
+            if (lookup != null) {
+                lookup.store(result, 1);
+            }
             return result;
         } finally {
-            if (cursor == null) {
+            if (cursor != null) {
                 cursor.close();
             }
         }
     }
 
     public QueryResult<T> getMany() throws OmxException {
-        Cursor cursor = this.run();
+        String sql = this.compile();
+        Iterable<Object> values = this.getValues();
+        CacheLookup lookup = this.lookup("many", sql, values);
+        if (lookup != null && lookup.value != null) {
+            return new DefaultQueryResult<T>(QueryCache.<QueryResult<T>>unwrap(lookup.value));
+        }
+        QueryProbe probe = QueryProbe.start(this.getSchema(), sql, values);
+        Cursor cursor = this.getSchema().executeSQL(sql, values);
         try {
-            return Mapper.getInstance().mapMany(cursor, this.getResultClass());
+            if (probe != null) {
+                probe.executed(cursor);
+            }
+            QueryResult<T> result = Mapper.getInstance().mapMany(cursor, this.getResultClass());
+            if (probe != null) {
+                probe.finish(result.count());
+            }
+            if (lookup != null) {
+                lookup.store(new DefaultQueryResult<T>(result), Math.max(1, result.count()));
+            }
+            return result;
         } finally {
-            if (cursor == null) {
+            if (cursor != null) {
                 cursor.close();
             }
         }
     }
 
+    private CacheLookup lookup(String kind, String sql, Iterable<Object> values) {
+        QueryCache cache = this.getSchema().getQueryCache();
+        if (cache == null) {
+            return null;
+        }
+        Set<String> tables = this.getDependencies();
+        if (tables == null) {
+            return null;
+        }
+        CacheLookup lookup = new CacheLookup();
+        lookup.cache = cache;
+        lookup.tables = tables;
+        lookup.generation = cache.getGeneration();
+        lookup.key = QueryCache.key(kind, sql, values);
+        lookup.value = cache.get(lookup.key);
+        return lookup;
+    }
+
+    /**
+     * Runs the query and returns a result which maps the rows only when they are accessed. The cursor stays open
+     * until the result is closed.
+     */
+    public LazyQueryResult<T> getLazy() throws OmxException {
+        return new CursorQueryResult<T>(this.run(), this.getResultClass(), false);
+    }
+
+    /**
+     * Like {@link #getLazy()} but maps every row into the same entity instance, for forward only scans over large
+     * results in constant memory.
+     */
+    public LazyQueryResult<T> stream() throws OmxException {
+        return new CursorQueryResult<T>(this.run(), this.getResultClass(), true);
+    }
+
+    /**
+     * Runs {@link #count()} on the reader pool of the schema. The query must not be changed until the call is done.
+     */
+    public Future<Long> countAsync(Callback<Long> callback) {
+        return this.getSchema().submitRead(new Callable<Long>() {
+            @Override
+            public Long call() throws Exception {
+                return RawQuery.this.count();
+            }
+        }, callback);
+    }
+
+    public Future<Long> countAsync() {
+        return this.countAsync(null);
+    }
+
+    public Future<T> getOneAsync(Callback<T> callback) {
+        return this.getSchema().submitRead(new Callable<T>() {
+            @Override
+            public T call() throws Exception {
+                return RawQuery.this.getOne();
+            }
+        }, callback);
+    }
+
+    public Future<T> getOneAsync() {
+        return this.getOneAsync(null);
+    }
+
+    public Future<QueryResult<T>> getManyAsync(Callback<QueryResult<T>> callback) {
+        return this.getSchema().submitRead(new Callable<QueryResult<T>>() {
+            @Override
+            public QueryResult<T> call() throws Exception {
+                return RawQuery.this.getMany();
+            }
+        }, callback);
+    }
+
+    public Future<QueryResult<T>> getManyAsync() {
+        return this.getManyAsync(null);
+    }
+
     public Cursor run() {
-        return this.getSchema().executeSQL(this.compile(), this.getValues());
+        String sql = this.compile();
+        Iterable<Object> values = this.getValues();
+        QueryProbe probe = QueryProbe.start(this.getSchema(), sql, values);
+        Cursor cursor = this.getSchema().executeSQL(sql, values);
+        if (probe != null) {
+            probe.executed(cursor);
+            probe.finish(cursor.getCount());
+        }
+        return cursor;
+    }
+
+    private static class CacheLookup {
+        private QueryCache cache;
+        private Set<String> tables;
+        private List<Object> key;
+        private long generation;
+        private Object value;
+
+        void store(Object result, int weight) {
+            this.cache.put(this.key, result, this.tables, weight, this.generation);
+        }
     }
 
 }
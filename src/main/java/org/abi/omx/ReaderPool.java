@@ -0,0 +1,41 @@
+package org.abi.omx;
+
+import android.database.sqlite.SQLiteDatabase;
+
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Fixed set of read-only connections to a database in write-ahead logging mode, handed out round-robin. Every
+ * connection is thread safe, the pool only spreads the readers so they do not queue on a single connection.
+ */
+class ReaderPool {
+    private final SQLiteDatabase[] readers;
+    private final AtomicInteger next;
+
+    public ReaderPool(String path, int size, List<String> pragmas) {
+        this.readers = new SQLiteDatabase[size];
+        this.next = new AtomicInteger();
+        for (int i = 0; i < size; i++) {
+            this.readers[i] = SQLiteDatabase.openDatabase(path, null, SQLiteDatabase.OPEN_READONLY);
+            for (String pragma : pragmas) {
+                Schema.pragma(this.readers[i], pragma);
+            }
+        }
+    }
+
+    public SQLiteDatabase acquire() {
+        int index = (this.next.getAndIncrement() & Integer.MAX_VALUE) % this.readers.length;
+        return this.readers[index];
+    }
+
+    public int size() {
+        return this.readers.length;
+    }
+
+    public void close() {
+        for (SQLiteDatabase reader : this.readers) {
+            reader.close();
+        }
+    }
+}
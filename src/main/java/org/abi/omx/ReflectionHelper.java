@@ -2,30 +2,35 @@ package org.abi.omx;
 
 import java.lang.reflect.Field;
 import java.util.ArrayList;
-import java.util.HashMap;
+import java.util.Arrays;
 import java.util.List;
-import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
 /**
  * Created by abi on 04.05.15.
  */
 class ReflectionHelper {
     private static ReflectionHelper instance = new ReflectionHelper();
-    private final Map<Class<? extends Entity>, TableDescriptor> classCache;
+    private final ConcurrentMap<Class<? extends Entity>, TableDescriptor> classCache;
     //private Map<Class<?>, String> types;
-    private Map<Class<? extends Entity>, Entity.Factory> factories;
+    private final ConcurrentMap<Class<? extends Entity>, Entity.Factory> factories;
 
     private ReflectionHelper() {
-        this.classCache = new HashMap<Class<? extends Entity>, TableDescriptor>();
-        this.factories = new HashMap<Class<? extends Entity>, Entity.Factory>();
+        this.classCache = new ConcurrentHashMap<Class<? extends Entity>, TableDescriptor>();
+        this.factories = new ConcurrentHashMap<Class<? extends Entity>, Entity.Factory>();
     }
 
     public static ReflectionHelper getInstance() {
         return instance;
     }
 
-    public void setFactrory(Class<? extends Entity> cls, Entity.Factory factory) {
+    public void setFactory(Class<? extends Entity> cls, Entity.Factory factory) {
         this.factories.put(cls, factory);
+        TableDescriptor descriptor = this.classCache.get(cls);
+        if (descriptor != null) {
+            descriptor.factory = factory;
+        }
     }
 
     public Object[] getValues(TableDescriptor descriptor, Entity target) throws OmxException {
@@ -40,38 +45,83 @@ class ReflectionHelper {
         return values.toArray();
     }
 
+    /**
+     * Returns the cached descriptor of the entity, building it on first use. Concurrent first calls may each build a
+     * descriptor, but only one of them is published and a descriptor is never visible before it is complete.
+     */
     public TableDescriptor probeTable(Class<? extends Entity> cls) throws OmxException {
         TableDescriptor descriptor = this.classCache.get(cls);
         if (descriptor == null) {
-            synchronized (this.classCache) {
-                descriptor = this.classCache.get(cls);
-                if (descriptor == null) {
-                    Table table = cls.getAnnotation(Table.class);
-                    if (table == null) {
-                        throw new OmxException(String.format("Entity [%s] has not @Table annotation.", cls.getName()));
-                    }
-                    descriptor = new TableDescriptor();
-                    this.classCache.put(cls, descriptor);
-
-                    descriptor.table = table;
-                    descriptor.name = table.name();
-                    if (descriptor.name.length() == 0) {
-                        descriptor.name = cls.getName();
-                    }
-                    descriptor.fieldDescriptors = this.probeFields(cls);
-                    descriptor.columns = this.createColumns(descriptor);
-                    descriptor.insertSQL = this.createInsertSQL(descriptor);
-                    descriptor.updateSQL = this.createUpdateSQL(descriptor);
-                    descriptor.deleteSQL = this.createDeleteSQL(descriptor);
-                    descriptor.getSQL = this.createGetSQL(descriptor);
-                    descriptor.getWhereClause = this.createGetWhereClause(descriptor);
-                }
+            descriptor = this.createDescriptor(cls);
+            TableDescriptor existing = this.classCache.putIfAbsent(cls, descriptor);
+            if (existing != null) {
+                descriptor = existing;
+            } else {
+                // A factory registered while the descriptor was built is not in it yet
+                descriptor.factory = this.factories.get(cls);
+            }
+        }
+        return descriptor;
+    }
+
+    private TableDescriptor createDescriptor(Class<? extends Entity> cls) throws OmxException {
+        Table table = cls.getAnnotation(Table.class);
+        if (table == null) {
+            throw new OmxException(String.format("Entity [%s] has not @Table annotation.", cls.getName()));
+        }
+        TableDescriptor descriptor = new TableDescriptor();
+        descriptor.table = table;
+        descriptor.name = table.name();
+        if (descriptor.name.length() == 0) {
+            descriptor.name = cls.getName();
+        }
+        descriptor.fieldDescriptors = this.probeFields(cls);
+        descriptor.keyDescriptors = new ArrayList<FieldDescriptor>();
+        descriptor.valueDescriptors = new ArrayList<FieldDescriptor>();
+        for (FieldDescriptor fieldDescriptor : descriptor.fieldDescriptors) {
+            if (fieldDescriptor.pk != null) {
+                descriptor.keyDescriptors.add(fieldDescriptor);
+            } else {
+                descriptor.valueDescriptors.add(fieldDescriptor);
             }
         }
+        descriptor.adapter = this.probeAdapter(cls, descriptor.fieldDescriptors);
+        descriptor.columns = this.createColumns(descriptor);
+        descriptor.insertSQL = this.createInsertSQL(descriptor);
+        descriptor.updateSQL = this.createUpdateSQL(descriptor);
+        descriptor.upsertSQL = this.createUpsertSQL(descriptor);
+        descriptor.deleteSQL = this.createDeleteSQL(descriptor);
+        descriptor.getSQL = this.createGetSQL(descriptor);
+        descriptor.getWhereClause = this.createGetWhereClause(descriptor);
         descriptor.factory = this.factories.get(cls);
         return descriptor;
     }
 
+    /**
+     * Looks up the adapter generated by the annotation processor. It is only used when it covers every column.
+     */
+    private EntityAdapter<Entity> probeAdapter(Class<? extends Entity> cls, List<FieldDescriptor> fieldDescriptors) {
+        EntityAdapter<Entity> adapter;
+        try {
+            Class<?> adapterClass = Class.forName(cls.getName() + EntityAdapter.SUFFIX, true, cls.getClassLoader());
+            adapter = (EntityAdapter<Entity>) adapterClass.newInstance();
+        } catch (ClassNotFoundException e) {
+            return null;
+        } catch (InstantiationException e) {
+            return null;
+        } catch (IllegalAccessException e) {
+            return null;
+        }
+        List<String> columns = Arrays.asList(adapter.getColumns());
+        for (FieldDescriptor fieldDescriptor : fieldDescriptors) {
+            fieldDescriptor.slot = columns.indexOf(fieldDescriptor.name);
+            if (fieldDescriptor.slot < 0) {
+                return null;
+            }
+        }
+        return adapter;
+    }
+
     private String createDeleteSQL(TableDescriptor descriptor) {
         StringBuilder builder = new StringBuilder();
         builder.append(String.format("DELETE FROM %s ", descriptor.name));
@@ -81,7 +131,7 @@ class ReflectionHelper {
                 if (where.toString().length() == 0) {
                     where.append(String.format(" %s=?", fieldDescriptor.name));
                 } else {
-                    where.append(String.format(", %s=?", fieldDescriptor.name));
+                    where.append(String.format(" AND %s=?", fieldDescriptor.name));
                 }
             }
         }
@@ -106,7 +156,7 @@ class ReflectionHelper {
                 if (where.toString().length() == 0) {
                     where.append(String.format(" %s=?", fieldDescriptor.name));
                 } else {
-                    where.append(String.format(", %s=?", fieldDescriptor.name));
+                    where.append(String.format(" AND %s=?", fieldDescriptor.name));
                 }
             }
         }
@@ -116,6 +166,29 @@ class ReflectionHelper {
         return builder.toString();
     }
 
+    private String createUpsertSQL(TableDescriptor descriptor) {
+        StringBuilder keys = new StringBuilder();
+        for (FieldDescriptor fieldDescriptor : descriptor.keyDescriptors) {
+            if (keys.length() > 0) {
+                keys.append(", ");
+            }
+            keys.append(fieldDescriptor.name);
+        }
+        StringBuilder set = new StringBuilder();
+        for (FieldDescriptor fieldDescriptor : descriptor.valueDescriptors) {
+            if (set.length() > 0) {
+                set.append(", ");
+            }
+            set.append(String.format("%s=excluded.%s", fieldDescriptor.name, fieldDescriptor.name));
+        }
+        String insert = this.createInsertSQL(descriptor);
+        insert = insert.substring(0, insert.length() - 1);
+        if (set.length() == 0) {
+            return String.format("%s \n ON CONFLICT(%s) DO NOTHING;", insert, keys);
+        }
+        return String.format("%s \n ON CONFLICT(%s) DO UPDATE SET %s;", insert, keys, set);
+    }
+
     private String createGetSQL(TableDescriptor descriptor) {
         String getWhereClause = this.createGetWhereClause(descriptor);
         StringBuilder builder = new StringBuilder();
@@ -194,7 +267,11 @@ class ReflectionHelper {
                 descriptor.uniqueIndex = field.getAnnotation(UniqueIndex.class);
                 descriptor.reference = field.getAnnotation(Reference.class);
                 descriptor.type = field.getType();
-                descriptor.sqlType = Mapper.getInstance().getTypeResolver(descriptor.type).getSQLType();
+                descriptor.resolver = Mapper.getInstance().getTypeResolver(descriptor.type);
+                descriptor.sqlType = descriptor.resolver.getSQLType();
+                if (descriptor.resolver instanceof PrimitiveTypeResolver) {
+                    descriptor.primitive = (PrimitiveTypeResolver<?>) descriptor.resolver;
+                }
                 if (descriptor.sqlType == null) {
                     throw new OmxException(String.format("Field [%s] of Entity [%s] with Type [%s] can not be mapped to SQL types.", descriptor.name, cls.getName(), descriptor.type.getName()));
                 }
@@ -221,6 +298,9 @@ class FieldDescriptor extends ColumnDescriptor {
     public UniqueIndex uniqueIndex;
     public Class<?> type;
     public String sqlType;
+    public Mapper.TypeResolver<?> resolver;
+    public PrimitiveTypeResolver<?> primitive;
+    public int slot;
     public PrimaryKey pk;
     public Reference reference;
 }
@@ -228,13 +308,17 @@ class FieldDescriptor extends ColumnDescriptor {
 class ModelDescriptor {
     public String name;
     public List<FieldDescriptor> fieldDescriptors;
-    public Entity.Factory factory;
+    public List<FieldDescriptor> keyDescriptors;
+    public List<FieldDescriptor> valueDescriptors;
+    public volatile Entity.Factory factory;
+    public EntityAdapter<Entity> adapter;
 }
 
 class TableDescriptor extends ModelDescriptor {
     public Table table;
     public String insertSQL;
     public String updateSQL;
+    public String upsertSQL;
     public String deleteSQL;
     public String[] columns;
     public String getWhereClause;
@@ -3,28 +3,102 @@ package org.abi.omx;
 import android.content.Context;
 import android.database.Cursor;
 import android.database.SQLException;
+import android.database.sqlite.SQLiteCursor;
+import android.database.sqlite.SQLiteCursorDriver;
 import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteQuery;
+import android.database.sqlite.SQLiteStatement;
 import android.util.Log;
 
 import java.io.File;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * Created by abi on 04.05.15.
  */
 public abstract class Schema {
+    public static final int DEFAULT_READER_THREADS = 2;
+    private static final String[] NO_ARGS = new String[0];
+
     private String name;
     private SQLiteDatabase rawDatabase;
+    private SchemaOptions options;
+    private SchemaOptions effectiveOptions;
+    private boolean writeAheadLogging;
+    private ReaderPool readerPool;
+    private StatementCache statementCache;
+    private int sqliteVersion;
+    private final ConcurrentMap<Class<? extends Entity>, Store<?>> stores =
+            new ConcurrentHashMap<Class<? extends Entity>, Store<?>>();
+    private final ThreadLocal<DefaultTransaction> currentTransaction = new ThreadLocal<DefaultTransaction>();
+    private volatile QueryCache queryCache;
+    private final List<TableListener> tableListeners = new CopyOnWriteArrayList<TableListener>();
+    private final List<QueryListener> queryListeners = new CopyOnWriteArrayList<QueryListener>();
+    private SlowQueryDetector slowQueryDetector;
+    private SchemaMigrator migrator;
+    private final List<String> deferredIndexes = new ArrayList<String>();
+    private ScheduledExecutorService notifier;
+    private ExecutorService writeExecutor;
+    private ExecutorService readExecutor;
+    private boolean externalExecutors;
+    private volatile boolean closed;
 
     public Schema(Context context, String name) {
+        this(context, name, SchemaOptions.DEFAULT);
+    }
+
+    public Schema(Context context, String name, SchemaOptions options) {
         if (!name.endsWith(".db")) {
             name = name + ".db";
         }
         this.name = name;
+        this.options = options;
         File file = context.getDatabasePath(name);
         debug(String.format("Creating database in [%s] ...", file.getPath()));
         this.rawDatabase = context.openOrCreateDatabase(name, Context.MODE_PRIVATE, null);
+        for (String pragma : options.getDatabasePragmas()) {
+            pragma(this.rawDatabase, pragma);
+        }
+        if (options.isWriteAheadLogging()) {
+            this.writeAheadLogging = this.rawDatabase.enableWriteAheadLogging();
+            if (!this.writeAheadLogging) {
+                debug("Write-ahead logging is not available.");
+            }
+        }
+        for (String pragma : options.getConnectionPragmas()) {
+            pragma(this.rawDatabase, pragma);
+        }
+        if (this.writeAheadLogging && options.getReaderConnections() > 0) {
+            this.readerPool = new ReaderPool(file.getPath(), options.getReaderConnections(),
+                    options.getConnectionPragmas());
+        }
+        this.statementCache = new StatementCache(this.rawDatabase);
+        this.sqliteVersion = this.probeSQLiteVersion();
+        this.effectiveOptions = this.probeEffectiveOptions();
+        if (options.getSynchronous() != null && options.getSynchronous() != this.effectiveOptions.getSynchronous()) {
+            debug(String.format("Synchronous mode [%s] was not applied, [%s] is in use.", options.getSynchronous(),
+                    this.effectiveOptions.getSynchronous()));
+        }
         debug("Database created.");
     }
 
@@ -34,27 +108,578 @@ public abstract class Schema {
 
     public void createTable(Class<? extends Entity> cls, Entity.Factory factory) throws OmxException {
         if (factory != null) {
-            ReflectionHelper.getInstance().setFactrory(cls, factory);
+            ReflectionHelper.getInstance().setFactory(cls, factory);
         }
 
-        String ddl = new TableCreationQueryBuilder(cls).compile();
+        this.createTables(cls);
+    }
+
+    public void createTables(Class<?>... classes) throws OmxException {
+        this.createTables(false, classes);
+    }
+
+    /**
+     * Creates the tables and their indexes in one transaction. With deferIndexes the non-unique indexes are only
+     * remembered and built by {@link #createDeferredIndexes()}, so an initial bulk load does not maintain them row by
+     * row. Unique indexes are always created with their tables, as they enforce constraints during the load.
+     */
+    public void createTables(boolean deferIndexes, Class<?>... classes) throws OmxException {
+        final List<String> statements = new ArrayList<String>();
+        final List<String> indexes = new ArrayList<String>();
+        final List<String> deferred = new ArrayList<String>();
+        for (Class<? extends Entity> cls : toEntityClasses(classes)) {
+            TableCreationQueryBuilder builder = new TableCreationQueryBuilder(cls);
+            this.checkIndexes(builder);
+            String table = ReflectionHelper.getInstance().probeTable(cls).name;
+            statements.add(builder.compileTableStatement());
+            for (IndexDefinition index : builder.getIndexes()) {
+                if (deferIndexes && !index.unique) {
+                    deferred.add(index.compile(table));
+                } else {
+                    indexes.add(index.compile(table));
+                }
+            }
+        }
+        statements.addAll(indexes);
+        this.executeStatements(statements);
+        synchronized (this.deferredIndexes) {
+            this.deferredIndexes.addAll(deferred);
+        }
+    }
+
+    /**
+     * Builds the indexes deferred by {@link #createTables(boolean, Class[])} in one transaction.
+     */
+    public void createDeferredIndexes() throws OmxException {
+        List<String> statements;
+        synchronized (this.deferredIndexes) {
+            statements = new ArrayList<String>(this.deferredIndexes);
+            this.deferredIndexes.clear();
+        }
         try {
-            this.executeDDL(ddl);
-        } catch (SQLException e) {
-            throw new OmxException(e);
+            this.executeStatements(statements);
+        } catch (OmxException e) {
+            synchronized (this.deferredIndexes) {
+                this.deferredIndexes.addAll(0, statements);
+            }
+            throw e;
+        }
+    }
+
+    public boolean hasDeferredIndexes() {
+        synchronized (this.deferredIndexes) {
+            return !this.deferredIndexes.isEmpty();
+        }
+    }
+
+    private void executeStatements(final List<String> statements) throws OmxException {
+        if (statements.isEmpty()) {
+            return;
+        }
+        this.runInTransaction(new Callable<Void>() {
+            @Override
+            public Void call() throws Exception {
+                try {
+                    for (String ddl : statements) {
+                        Schema.this.executeDDL(ddl);
+                    }
+                } catch (SQLException e) {
+                    throw new OmxException(e);
+                }
+                return null;
+            }
+        });
+    }
+
+    public void migrateTable(Class<? extends Entity> cls) throws OmxException {
+        this.migrateTables(cls);
+    }
+
+    /**
+     * Creates the tables of the entities or migrates them to their current definition: new columns and indexes are
+     * added in place, other changes copy the table. All changes run in one transaction and increase the user version
+     * of the database. Tables whose definition did not change since their last migration, and which still exist, are
+     * skipped without inspecting their columns.
+     */
+    public synchronized void migrateTables(Class<?>... classes) throws OmxException {
+        final SchemaMigrator migrator = this.getMigrator();
+        final List<Class<? extends Entity>> pending = new ArrayList<Class<? extends Entity>>();
+        for (Class<? extends Entity> cls : toEntityClasses(classes)) {
+            if (!migrator.isCurrent(cls)) {
+                pending.add(cls);
+            }
+        }
+        if (pending.isEmpty()) {
+            return;
+        }
+        try {
+            this.runInTransaction(new Callable<Void>() {
+                @Override
+                public Void call() throws Exception {
+                    boolean changed = false;
+                    for (Class<? extends Entity> cls : pending) {
+                        changed |= migrator.migrate(cls);
+                    }
+                    if (changed) {
+                        Schema.this.rawDatabase.setVersion(Schema.this.rawDatabase.getVersion() + 1);
+                    }
+                    return null;
+                }
+            }, Transaction.Mode.EXCLUSIVE);
+        } catch (OmxException e) {
+            migrator.reload();
+            throw e;
+        } catch (RuntimeException e) {
+            migrator.reload();
+            throw e;
         }
+        this.statementCache.clear();
+        for (Class<? extends Entity> cls : pending) {
+            Store<?> store = this.stores.get(cls);
+            if (store != null) {
+                store.reset();
+            }
+            this.onTableChanged(ReflectionHelper.getInstance().probeTable(cls).name);
+        }
+    }
+
+    /**
+     * Returns PRAGMA user_version, which every migration that changed a table increases.
+     */
+    public int getUserVersion() {
+        return this.rawDatabase.getVersion();
     }
 
-    public void dropTable(Class<? extends Entity> cls) throws OmxException {
+    private static List<Class<? extends Entity>> toEntityClasses(Class<?>[] classes) throws OmxException {
+        List<Class<? extends Entity>> results = new ArrayList<Class<? extends Entity>>();
+        for (Class<?> cls : classes) {
+            if (!Entity.class.isAssignableFrom(cls)) {
+                throw new OmxException(String.format("Class [%s] is not an entity.", cls.getName()));
+            }
+            results.add(cls.asSubclass(Entity.class));
+        }
+        return results;
+    }
+
+    private synchronized SchemaMigrator getMigrator() {
+        if (this.migrator == null) {
+            this.migrator = new SchemaMigrator(this);
+        }
+        return this.migrator;
+    }
+
+    public synchronized void dropTable(Class<? extends Entity> cls) throws OmxException {
         TableDescriptor descriptor = ReflectionHelper.getInstance().probeTable(cls);
+        this.statementCache.clear();
+        Store<?> store = this.stores.get(cls);
+        if (store != null) {
+            store.reset();
+        }
         this.executeDDL("DROP TABLE IF EXISTS " + descriptor.name);
+        this.getMigrator().forget(descriptor.name);
+        this.onTableChanged(descriptor.name);
+    }
+
+    /**
+     * Enables the identity cache of the given entity. Store.get returns the cached instance of a primary key until it
+     * is written through a store of this schema, evicted as least recently used beyond maxSize or older than ttlMillis
+     * (zero keeps entries until they are evicted). Cached instances are shared, so they should not be modified without
+     * saving them. Changes made with plain SQL are not seen by the cache.
+     */
+    public void enableEntityCache(Class<? extends Entity> cls, int maxSize, long ttlMillis) throws OmxException {
+        this.getStore(cls).setEntityCache(new EntityCache(maxSize, ttlMillis));
+    }
+
+    public void disableEntityCache(Class<? extends Entity> cls) throws OmxException {
+        this.getStore(cls).setEntityCache(null);
+    }
+
+    /**
+     * Enables caching the results of queries marked with {@link Query#cached()}. At most maxRows result rows are kept;
+     * entries are dropped when a store of this schema writes to one of their tables.
+     */
+    public void enableQueryCache(int maxRows) {
+        this.queryCache = new QueryCache(maxRows);
+    }
+
+    public void disableQueryCache() {
+        this.queryCache = null;
+    }
+
+    public QueryCache getQueryCache() {
+        return this.queryCache;
+    }
+
+    public void addQueryListener(QueryListener listener) {
+        this.queryListeners.add(listener);
+    }
+
+    public void removeQueryListener(QueryListener listener) {
+        this.queryListeners.remove(listener);
+    }
+
+    /**
+     * Explains every statement slower than the threshold and reports its plan, flagging full table scans. Replaces
+     * a previously enabled detector.
+     */
+    public synchronized SlowQueryDetector enableSlowQueryDetection(long thresholdMillis, SlowQueryListener listener) {
+        if (thresholdMillis < 0) {
+            throw new IllegalArgumentException(String.format("Invalid threshold [%d].", thresholdMillis));
+        }
+        this.disableSlowQueryDetection();
+        this.slowQueryDetector = new SlowQueryDetector(this, thresholdMillis, listener);
+        this.addQueryListener(this.slowQueryDetector);
+        return this.slowQueryDetector;
+    }
+
+    public synchronized void disableSlowQueryDetection() {
+        if (this.slowQueryDetector != null) {
+            this.removeQueryListener(this.slowQueryDetector);
+            this.slowQueryDetector = null;
+        }
+    }
+
+    boolean hasQueryListeners() {
+        return !this.queryListeners.isEmpty();
+    }
+
+    void onQuery(QueryEvent event) {
+        for (QueryListener listener : this.queryListeners) {
+            try {
+                listener.onQuery(event);
+            } catch (RuntimeException e) {
+                Log.e(this.getTag(), "Query listener failed.", e);
+            }
+        }
+    }
+
+    long getTransactionId() {
+        DefaultTransaction transaction = this.currentTransaction.get();
+        return transaction == null ? 0 : transaction.getId();
+    }
+
+    public void addTableListener(TableListener listener) {
+        this.tableListeners.add(listener);
+    }
+
+    public void removeTableListener(TableListener listener) {
+        this.tableListeners.remove(listener);
+    }
+
+    /**
+     * Returns the single daemon thread which delivers change notifications and runs observed queries.
+     */
+    synchronized ScheduledExecutorService getNotifier() {
+        this.checkOpen();
+        if (this.notifier == null) {
+            this.notifier = Executors.newSingleThreadScheduledExecutor(
+                    new DaemonThreadFactory(String.format("omx-notifier-%s", this.name)));
+        }
+        return this.notifier;
+    }
+
+    /**
+     * Replaces the executors of the asynchronous API. Writes must be serialized, so the write executor should run a
+     * single thread. The previous executors are not shut down.
+     */
+    public synchronized void setExecutors(ExecutorService writeExecutor, ExecutorService readExecutor) {
+        this.checkOpen();
+        this.writeExecutor = writeExecutor;
+        this.readExecutor = readExecutor;
+        this.externalExecutors = true;
+    }
+
+    public synchronized ExecutorService getWriteExecutor() {
+        this.checkOpen();
+        if (this.writeExecutor == null) {
+            this.writeExecutor = Executors.newSingleThreadExecutor(
+                    new DaemonThreadFactory(String.format("omx-writer-%s", this.name)));
+        }
+        return this.writeExecutor;
+    }
+
+    public synchronized ExecutorService getReadExecutor() {
+        this.checkOpen();
+        if (this.readExecutor == null) {
+            this.readExecutor = Executors.newFixedThreadPool(DEFAULT_READER_THREADS,
+                    new DaemonThreadFactory(String.format("omx-reader-%s", this.name)));
+        }
+        return this.readExecutor;
+    }
+
+    /**
+     * Stops the threads of the schema and closes its statements, reader connections and database. Executors given to
+     * {@link #setExecutors} are left to the caller. Pending notifications and observed queries are dropped. The
+     * schema cannot be used afterwards; its executors throw IllegalStateException.
+     */
+    public synchronized void close() {
+        if (this.closed) {
+            return;
+        }
+        this.closed = true;
+        if (this.notifier != null) {
+            this.notifier.shutdownNow();
+            this.notifier = null;
+        }
+        if (!this.externalExecutors) {
+            if (this.writeExecutor != null) {
+                this.writeExecutor.shutdown();
+            }
+            if (this.readExecutor != null) {
+                this.readExecutor.shutdown();
+            }
+        }
+        this.writeExecutor = null;
+        this.readExecutor = null;
+        for (Store<?> store : this.stores.values()) {
+            store.reset();
+        }
+        this.statementCache.clear();
+        if (this.readerPool != null) {
+            this.readerPool.close();
+        }
+        this.rawDatabase.close();
+        debug("Database closed.");
+    }
+
+    public boolean isClosed() {
+        return this.closed;
+    }
+
+    private void checkOpen() {
+        if (this.closed) {
+            throw new IllegalStateException(String.format("Schema [%s] is closed.", this.name));
+        }
+    }
+
+    <R> Future<R> submitWrite(Callable<R> task, Callback<R> callback) {
+        CallbackFuture<R> future = new CallbackFuture<R>(task, callback);
+        this.getWriteExecutor().execute(future);
+        return future;
+    }
+
+    <R> Future<R> submitRead(Callable<R> task, Callback<R> callback) {
+        CallbackFuture<R> future = new CallbackFuture<R>(task, callback);
+        this.getReadExecutor().execute(future);
+        return future;
+    }
+
+    void onTableChanged(String table) {
+        QueryCache queryCache = this.queryCache;
+        if (queryCache != null) {
+            queryCache.invalidate(table);
+        }
+        DefaultTransaction transaction = this.currentTransaction.get();
+        if (transaction != null) {
+            transaction.getChangedTables().add(table);
+        } else {
+            this.publish(Collections.singleton(table));
+        }
+    }
+
+    private void publish(final Set<String> tables) {
+        if (this.tableListeners.isEmpty() || tables.isEmpty()) {
+            return;
+        }
+        this.getNotifier().execute(new Runnable() {
+            @Override
+            public void run() {
+                for (TableListener listener : Schema.this.tableListeners) {
+                    try {
+                        listener.onTablesChanged(tables);
+                    } catch (RuntimeException e) {
+                        Log.e(Schema.this.getTag(), "Table listener failed.", e);
+                    }
+                }
+            }
+        });
+    }
+
+    void onBegin(DefaultTransaction transaction) {
+        this.currentTransaction.set(transaction);
+    }
+
+    void onCommit(DefaultTransaction transaction) {
+        this.currentTransaction.remove();
+        QueryCache queryCache = this.queryCache;
+        if (queryCache != null) {
+            for (String table : transaction.getChangedTables()) {
+                queryCache.invalidate(table);
+            }
+        }
+        this.publish(transaction.getChangedTables());
+    }
+
+    void onRollback(DefaultTransaction transaction) {
+        this.currentTransaction.remove();
+        this.clearCaches();
+    }
+
+    /**
+     * Cached entities and results may hold rows written after the savepoint, which are gone now.
+     */
+    void onRollbackToSavepoint() {
+        this.clearCaches();
+    }
+
+    private void clearCaches() {
+        for (Store<?> store : this.stores.values()) {
+            EntityCache entityCache = store.getEntityCache();
+            if (entityCache != null) {
+                entityCache.clear();
+            }
+        }
+        QueryCache queryCache = this.queryCache;
+        if (queryCache != null) {
+            queryCache.clear();
+        }
     }
 
     public SQLiteDatabase getRawDatabase() {
         return this.rawDatabase;
     }
 
-    private String getTag() {
+    public SchemaOptions getOptions() {
+        return this.options;
+    }
+
+    /**
+     * Returns the options as read back from the database after it was opened, which differ from the requested ones
+     * when SQLite rejected or capped a value.
+     */
+    public SchemaOptions getEffectiveOptions() {
+        return this.effectiveOptions;
+    }
+
+    public boolean isWriteAheadLogging() {
+        return this.writeAheadLogging;
+    }
+
+    /**
+     * Returns the connection a query should run on. A thread holding the write connection, e.g. inside a transaction,
+     * keeps reading from it so it sees its own uncommitted changes.
+     */
+    SQLiteDatabase getReadDatabase() {
+        if (this.readerPool == null || this.currentTransaction.get() != null
+                || this.rawDatabase.isDbLockedByCurrentThread()) {
+            return this.rawDatabase;
+        }
+        return this.readerPool.acquire();
+    }
+
+    StatementCache getStatementCache() {
+        return this.statementCache;
+    }
+
+    /**
+     * Returns the version of the underlying SQLite library in the form of SQLITE_VERSION_NUMBER, e.g. 3024000.
+     */
+    public int getSQLiteVersion() {
+        return this.sqliteVersion;
+    }
+
+    boolean supportsUpsert() {
+        return this.sqliteVersion >= 3024000;
+    }
+
+    boolean supportsPartialIndexes() {
+        return this.sqliteVersion >= 3008000;
+    }
+
+    /**
+     * Rejects partial indexes on SQLite versions which cannot create them, instead of failing with a syntax error.
+     */
+    void checkIndexes(TableCreationQueryBuilder builder) throws OmxException {
+        if (this.supportsPartialIndexes()) {
+            return;
+        }
+        for (IndexDefinition index : builder.getIndexes()) {
+            if (index.where.length() > 0) {
+                throw new OmxException(String.format("Partial index [%s] needs SQLite 3.8.0 but [%d.%d.%d] is in use.",
+                        index.name, this.sqliteVersion / 1000000, this.sqliteVersion / 1000 % 1000,
+                        this.sqliteVersion % 1000));
+            }
+        }
+    }
+
+    /**
+     * Runs a pragma and returns the first column of its first row, if any. Pragmas are run as queries because most of
+     * them return their new value, which execSQL refuses on Android.
+     */
+    static String pragma(SQLiteDatabase db, String sql) {
+        Cursor cursor = db.rawQuery(sql, null);
+        try {
+            return cursor.moveToFirst() ? cursor.getString(0) : null;
+        } finally {
+            cursor.close();
+        }
+    }
+
+    private Long probePragma(String name) {
+        String value = pragma(this.rawDatabase, "PRAGMA " + name);
+        if (value == null) {
+            return null;
+        }
+        try {
+            return Long.valueOf(value);
+        } catch (NumberFormatException e) {
+            debug(String.format("Unexpected value [%s] of pragma [%s].", value, name));
+            return null;
+        }
+    }
+
+    private SchemaOptions probeEffectiveOptions() {
+        Long pageSize = this.probePragma("page_size");
+        Long cacheSize = this.probePragma("cache_size");
+        Long synchronous = this.probePragma("synchronous");
+        Long tempStore = this.probePragma("temp_store");
+        SchemaOptions.JournalMode journalMode = null;
+        String mode = pragma(this.rawDatabase, "PRAGMA journal_mode");
+        if (mode != null) {
+            try {
+                journalMode = SchemaOptions.JournalMode.valueOf(mode.toUpperCase(Locale.US));
+            } catch (IllegalArgumentException e) {
+                debug(String.format("Unexpected journal mode [%s].", mode));
+            }
+        }
+        SchemaOptions.Synchronous[] synchronousLevels = SchemaOptions.Synchronous.values();
+        SchemaOptions.TempStore[] tempStores = SchemaOptions.TempStore.values();
+        return new SchemaOptions(this.writeAheadLogging,
+                this.readerPool == null ? 0 : this.readerPool.size(),
+                pageSize == null ? null : pageSize.intValue(),
+                cacheSize == null ? null : cacheSize.intValue(),
+                this.probePragma("mmap_size"),
+                synchronous == null || synchronous < 0 || synchronous >= synchronousLevels.length
+                        ? null : synchronousLevels[synchronous.intValue()],
+                tempStore == null || tempStore < 0 || tempStore >= tempStores.length
+                        ? null : tempStores[tempStore.intValue()],
+                journalMode);
+    }
+
+    private int probeSQLiteVersion() {
+        SQLiteStatement statement = this.rawDatabase.compileStatement("SELECT sqlite_version()");
+        String version;
+        try {
+            version = statement.simpleQueryForString();
+        } finally {
+            statement.close();
+        }
+        String[] parts = version.split("\\.");
+        int result = 0;
+        for (int i = 0; i < 3; i++) {
+            result *= 1000;
+            if (i < parts.length) {
+                try {
+                    result += Integer.parseInt(parts[i]);
+                } catch (NumberFormatException e) {
+                    debug(String.format("Unexpected SQLite version [%s].", version));
+                }
+            }
+        }
+        return result;
+    }
+
+    String getTag() {
         return String.format("Database[%s]", name);
     }
 
@@ -62,8 +687,20 @@ public abstract class Schema {
         Log.d(this.getTag(), message);
     }
 
-    public <T extends Entity> Store getStore(Class<T> cls) throws OmxException {
-        return new DefaultStore<T>(this, cls);
+    /**
+     * Returns the store of the entity. Stores are created once per entity class and keep their compiled statements
+     * and caches, so looking them up is cheap.
+     */
+    public <T extends Entity> Store<T> getStore(Class<T> cls) throws OmxException {
+        Store<T> store = (Store<T>) this.stores.get(cls);
+        if (store == null) {
+            store = new DefaultStore<T>(this, cls);
+            Store<T> existing = (Store<T>) this.stores.putIfAbsent(cls, store);
+            if (existing != null) {
+                store = existing;
+            }
+        }
+        return store;
     }
 
     public void executeDDL(String ddl) {
@@ -72,25 +709,87 @@ public abstract class Schema {
     }
 
     public Cursor executeSQL(String sql, Iterable<Object> args) {
-        long start = System.nanoTime();
-        List<String> strings = new ArrayList<String>();
-        for (Object value : args) {
-            if (value != null) {
-                strings.add(value.toString());
-            } else {
-                strings.add(null);
+        Object[] values;
+        if (args == null) {
+            values = null;
+        } else if (args instanceof Collection) {
+            values = ((Collection<Object>) args).toArray();
+        } else {
+            List<Object> list = new ArrayList<Object>();
+            for (Object value : args) {
+                list.add(value);
             }
+            values = list.toArray();
         }
-        String[] values = new String[strings.size()];
-        strings.toArray(values);
-        Cursor cursor = this.rawDatabase.rawQuery(sql, values);
-        double elapsed = (System.nanoTime() - start) / 1000000000.0;
-        debug(String.format("->\n%s\n\t%s\n\t(Elapsed time:[%fs])", sql, args, elapsed));
-        return cursor;
+        return this.rawQuery(sql, values);
+    }
+
+    /**
+     * Runs the query binding every argument with its native SQLite type, so numbers are compared as numbers and
+     * blobs as blobs instead of as their string forms. Null runs the query without arguments.
+     */
+    Cursor rawQuery(String sql, Object[] values) {
+        final Object[] args = values == null ? new Object[0] : values;
+        return this.getReadDatabase().rawQueryWithFactory(new SQLiteDatabase.CursorFactory() {
+            @Override
+            public Cursor newCursor(SQLiteDatabase db, SQLiteCursorDriver masterQuery, String editTable,
+                                    SQLiteQuery query) {
+                for (int i = 0; i < args.length; i++) {
+                    Binder.bind(query, i + 1, args[i]);
+                }
+                return new SQLiteCursor(masterQuery, editTable, query);
+            }
+        }, sql, NO_ARGS, null);
     }
 
+    /**
+     * Begins a transaction, or a savepoint when the thread is already in one. In write-ahead logging mode the
+     * transaction is IMMEDIATE so readers are never blocked, otherwise EXCLUSIVE.
+     */
     public Transaction begin() {
-        return new DefaultTransaction(this.getRawDatabase());
+        return this.begin(this.getDefaultTransactionMode());
+    }
+
+    public Transaction begin(Transaction.Mode mode) {
+        return new DefaultTransaction(this, mode);
+    }
+
+    public <R> R runInTransaction(Callable<R> work) throws OmxException {
+        return this.runInTransaction(work, this.getDefaultTransactionMode());
+    }
+
+    private Transaction.Mode getDefaultTransactionMode() {
+        return this.writeAheadLogging ? Transaction.Mode.IMMEDIATE : Transaction.Mode.EXCLUSIVE;
+    }
+
+    /**
+     * Runs the work in a transaction which is committed when the work returns and rolled back when it throws. Called
+     * inside another transaction it runs in a savepoint, so a failure only undoes its own changes.
+     */
+    public <R> R runInTransaction(Callable<R> work, Transaction.Mode mode) throws OmxException {
+        Transaction transaction = this.begin(mode);
+        boolean committed = false;
+        try {
+            R result = work.call();
+            transaction.commit();
+            committed = true;
+            return result;
+        } catch (OmxException e) {
+            throw e;
+        } catch (RuntimeException e) {
+            throw e;
+        } catch (Exception e) {
+            throw new OmxException(e);
+        } finally {
+            if (!committed) {
+                try {
+                    transaction.rollback();
+                } catch (RuntimeException e) {
+                    // Keep the exception of the work or the commit, which is more telling
+                    Log.w(this.getTag(), "Rollback failed.", e);
+                }
+            }
+        }
     }
 
     public <T> Query<T> query(Class<T> cls) {
@@ -103,8 +802,43 @@ public abstract class Schema {
 }
 
 class DefaultTransaction extends Transaction {
-    public DefaultTransaction(SQLiteDatabase db) {
-        super(db);
+    private static final AtomicLong ids = new AtomicLong();
+
+    private final long id;
+    private Schema schema;
+    private Set<String> changedTables;
+
+    public DefaultTransaction(Schema schema, Mode mode) {
+        super(schema.getRawDatabase(), mode);
+        this.id = ids.incrementAndGet();
+        this.schema = schema;
+        this.changedTables = new HashSet<String>();
+        if (this.isStarted()) {
+            schema.onBegin(this);
+        }
+    }
+
+    public long getId() {
+        return this.id;
+    }
+
+    public Set<String> getChangedTables() {
+        return this.changedTables;
+    }
+
+    @Override
+    protected void onCommit() {
+        this.schema.onCommit(this);
+    }
+
+    @Override
+    protected void onRollback() {
+        this.schema.onRollback(this);
+    }
+
+    @Override
+    protected void onRollbackToSavepoint() {
+        this.schema.onRollbackToSavepoint();
     }
 }
 
@@ -143,6 +877,7 @@ class DefaultRawQuery<T> extends RawQuery<T> {
 
     public DefaultRawQuery(Schema schema, Class<T> cls, String sql, Object[] args) {
         super(schema, cls);
+        this.sql = sql;
         this.args = new ArrayList<Object>();
         for (Object v : args) {
             this.args.add(v);
@@ -161,8 +896,62 @@ class DefaultRawQuery<T> extends RawQuery<T> {
 
 }
 
+class DefaultPreparedQuery<T> extends PreparedQuery<T> {
+    public DefaultPreparedQuery(Schema schema, Class<T> cls, String sql, Object[] values, int variables) {
+        super(schema, cls, sql, values, variables);
+    }
+
+    public DefaultPreparedQuery(Schema schema, Class<T> cls, String sql, String countSQL, Object[] values,
+                                int variables) {
+        super(schema, cls, sql, countSQL, values, variables);
+    }
+}
+
 class DefaultQuery<T> extends Query<T> {
     protected DefaultQuery(Schema schema, Class<T> cls) {
         super(schema, cls);
     }
-}
\ No newline at end of file
+}
+
+class DaemonThreadFactory implements ThreadFactory {
+    private final String prefix;
+    private final AtomicInteger counter = new AtomicInteger();
+
+    public DaemonThreadFactory(String prefix) {
+        this.prefix = prefix;
+    }
+
+    @Override
+    public Thread newThread(Runnable runnable) {
+        Thread thread = new Thread(runnable, String.format("%s-%d", this.prefix, this.counter.incrementAndGet()));
+        thread.setDaemon(true);
+        return thread;
+    }
+}
+
+class CallbackFuture<R> extends FutureTask<R> {
+    private final Callback<R> callback;
+
+    public CallbackFuture(Callable<R> task, Callback<R> callback) {
+        super(task);
+        this.callback = callback;
+    }
+
+    @Override
+    protected void done() {
+        if (this.callback == null || this.isCancelled()) {
+            return;
+        }
+        R result;
+        try {
+            result = this.get();
+        } catch (InterruptedException e) {
+            return;
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            this.callback.onError(cause instanceof OmxException ? (OmxException) cause : new OmxException(e));
+            return;
+        }
+        this.callback.onSuccess(result);
+    }
+}
@@ -0,0 +1,328 @@
+package org.abi.omx;
+
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+
+import java.io.UnsupportedEncodingException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Brings the tables of a schema in line with their entities. The DDL of every migrated table is hashed and kept in
+ * omx_meta, so unchanged tables are recognized without inspecting their columns. Otherwise the table is compared with
+ * PRAGMA table_info and index_list: new columns are added and indexes created or dropped in place, any other change
+ * rebuilds the table by copying the rows into a new one. Migrations must run inside a transaction.
+ */
+class SchemaMigrator {
+    static final String META_TABLE = "omx_meta";
+    private static final String REBUILD_SUFFIX = "_omx_new";
+    private static final String AUTO_INDEX_PREFIX = "sqlite_autoindex_";
+
+    private final Schema schema;
+    private final SQLiteDatabase db;
+    private Map<String, String> hashes;
+
+    public SchemaMigrator(Schema schema) {
+        this.schema = schema;
+        this.db = schema.getRawDatabase();
+    }
+
+    public boolean isCurrent(Class<? extends Entity> cls) throws OmxException {
+        TableDescriptor descriptor = ReflectionHelper.getInstance().probeTable(cls);
+        String hash = hash(new TableCreationQueryBuilder(cls).compile());
+        return hash.equals(this.getHashes().get(descriptor.name)) && this.hasTable(descriptor.name);
+    }
+
+    /**
+     * Forgets the recorded hashes, e.g. after the transaction which recorded them was rolled back.
+     */
+    public void reload() {
+        this.hashes = null;
+    }
+
+    /**
+     * Forgets the recorded definition of a dropped table, so the next migration creates it again.
+     */
+    public void forget(String table) {
+        if (this.hasTable(META_TABLE)) {
+            this.db.execSQL(String.format("DELETE FROM %s WHERE name = ?", META_TABLE), new Object[]{table});
+        }
+        if (this.hashes != null) {
+            this.hashes.remove(table);
+        }
+    }
+
+    /**
+     * Creates or migrates the table and returns whether its definition in the database changed.
+     */
+    public boolean migrate(Class<? extends Entity> cls) throws OmxException {
+        TableDescriptor descriptor = ReflectionHelper.getInstance().probeTable(cls);
+        TableCreationQueryBuilder builder = new TableCreationQueryBuilder(cls);
+        this.schema.checkIndexes(builder);
+        List<String> statements = builder.compile();
+        boolean changed;
+        Map<String, ExistingColumn> columns = this.getColumns(descriptor.name);
+        if (columns.isEmpty()) {
+            for (String statement : statements) {
+                this.schema.executeDDL(statement);
+            }
+            changed = true;
+        } else if (this.isCompatible(descriptor, columns)) {
+            changed = this.addColumns(descriptor, columns);
+            changed |= this.migrateIndexes(descriptor, builder.getIndexes());
+        } else {
+            this.rebuild(descriptor, builder, columns);
+            changed = true;
+        }
+        this.record(descriptor.name, hash(statements));
+        return changed;
+    }
+
+    /**
+     * Columns can only be added in place; removed columns, changed types, keys or unique constraints need a rebuild.
+     */
+    private boolean isCompatible(TableDescriptor descriptor, Map<String, ExistingColumn> columns) {
+        Set<String> declared = new HashSet<String>();
+        for (FieldDescriptor field : descriptor.fieldDescriptors) {
+            String name = field.name.toLowerCase(Locale.US);
+            declared.add(name);
+            ExistingColumn column = columns.get(name);
+            int pk = descriptor.keyDescriptors.indexOf(field) + 1;
+            if (column == null) {
+                if (pk > 0 || field.column.unqiue()) {
+                    return false;
+                }
+            } else if (!column.type.equalsIgnoreCase(field.sqlType) || column.pk != pk) {
+                return false;
+            }
+        }
+        if (!declared.containsAll(columns.keySet())) {
+            return false;
+        }
+        Set<String> unique = new HashSet<String>();
+        for (FieldDescriptor field : descriptor.fieldDescriptors) {
+            if (field.column.unqiue()) {
+                unique.add(field.name.toLowerCase(Locale.US));
+            }
+        }
+        Set<String> existingUnique = this.getUniqueColumns(descriptor.name);
+        if (descriptor.keyDescriptors.size() == 1) {
+            String key = descriptor.keyDescriptors.get(0).name.toLowerCase(Locale.US);
+            if (!unique.contains(key)) {
+                existingUnique.remove(key);
+            }
+        }
+        return unique.equals(existingUnique);
+    }
+
+    private boolean addColumns(TableDescriptor descriptor, Map<String, ExistingColumn> columns) {
+        boolean changed = false;
+        for (FieldDescriptor field : descriptor.fieldDescriptors) {
+            if (!columns.containsKey(field.name.toLowerCase(Locale.US))) {
+                this.schema.executeDDL(String.format("ALTER TABLE %s ADD COLUMN %s %s", descriptor.name, field.name,
+                        field.sqlType));
+                changed = true;
+            }
+        }
+        return changed;
+    }
+
+    /**
+     * Creates missing indexes, recreates indexes whose definition changed and drops indexes no longer declared.
+     */
+    private boolean migrateIndexes(TableDescriptor descriptor, List<IndexDefinition> indexes) {
+        Map<String, String> existing = this.getIndexes(descriptor.name);
+        boolean changed = false;
+        for (IndexDefinition index : indexes) {
+            String sql = index.compile(descriptor.name);
+            String current = existing.remove(index.name.toLowerCase(Locale.US));
+            if (current != null && normalize(current).equals(normalize(sql))) {
+                continue;
+            }
+            if (current != null) {
+                this.schema.executeDDL("DROP INDEX IF EXISTS " + index.name);
+            }
+            this.schema.executeDDL(sql);
+            changed = true;
+        }
+        for (String name : existing.keySet()) {
+            this.schema.executeDDL("DROP INDEX IF EXISTS " + name);
+            changed = true;
+        }
+        return changed;
+    }
+
+    /**
+     * Copies the rows into a table with the new definition, keeping the columns both definitions share, and swaps it
+     * in. The copy is a single INSERT ... SELECT, so no row passes through Java.
+     */
+    private void rebuild(TableDescriptor descriptor, TableCreationQueryBuilder builder,
+                         Map<String, ExistingColumn> columns) throws OmxException {
+        String temporary = descriptor.name + REBUILD_SUFFIX;
+        this.schema.executeDDL("DROP TABLE IF EXISTS " + temporary);
+        this.schema.executeDDL(builder.compileTableStatement(temporary));
+        StringBuilder shared = new StringBuilder();
+        for (FieldDescriptor field : descriptor.fieldDescriptors) {
+            if (columns.containsKey(field.name.toLowerCase(Locale.US))) {
+                if (shared.length() > 0) {
+                    shared.append(", ");
+                }
+                shared.append(field.name);
+            }
+        }
+        if (shared.length() > 0) {
+            this.db.execSQL(String.format("INSERT INTO %s (%s) SELECT %s FROM %s", temporary, shared, shared,
+                    descriptor.name));
+        }
+        this.schema.executeDDL("DROP TABLE " + descriptor.name);
+        this.schema.executeDDL(String.format("ALTER TABLE %s RENAME TO %s", temporary, descriptor.name));
+        for (String statement : builder.compileIndexStatements()) {
+            this.schema.executeDDL(statement);
+        }
+    }
+
+    private Map<String, ExistingColumn> getColumns(String table) {
+        Map<String, ExistingColumn> columns = new HashMap<String, ExistingColumn>();
+        Cursor cursor = this.db.rawQuery(String.format("PRAGMA table_info(%s)", table), null);
+        try {
+            int name = cursor.getColumnIndex("name");
+            int type = cursor.getColumnIndex("type");
+            int pk = cursor.getColumnIndex("pk");
+            while (cursor.moveToNext()) {
+                ExistingColumn column = new ExistingColumn();
+                column.type = cursor.isNull(type) ? "" : cursor.getString(type);
+                column.pk = cursor.getInt(pk);
+                columns.put(cursor.getString(name).toLowerCase(Locale.US), column);
+            }
+        } finally {
+            cursor.close();
+        }
+        return columns;
+    }
+
+    /**
+     * Returns the columns with a UNIQUE constraint of their own, i.e. the single column indexes SQLite created.
+     */
+    private Set<String> getUniqueColumns(String table) {
+        List<String> indexes = new ArrayList<String>();
+        Cursor cursor = this.db.rawQuery(String.format("PRAGMA index_list(%s)", table), null);
+        try {
+            int name = cursor.getColumnIndex("name");
+            int unique = cursor.getColumnIndex("unique");
+            while (cursor.moveToNext()) {
+                String index = cursor.getString(name);
+                if (index.startsWith(AUTO_INDEX_PREFIX) && cursor.getInt(unique) != 0) {
+                    indexes.add(index);
+                }
+            }
+        } finally {
+            cursor.close();
+        }
+        Set<String> columns = new HashSet<String>();
+        for (String index : indexes) {
+            cursor = this.db.rawQuery(String.format("PRAGMA index_info(%s)", index), null);
+            try {
+                if (cursor.getCount() == 1 && cursor.moveToFirst()) {
+                    columns.add(cursor.getString(cursor.getColumnIndex("name")).toLowerCase(Locale.US));
+                }
+            } finally {
+                cursor.close();
+            }
+        }
+        return columns;
+    }
+
+    /**
+     * Returns the SQL of the declared indexes of the table by lower case name; indexes SQLite created for
+     * constraints are left out.
+     */
+    private Map<String, String> getIndexes(String table) {
+        Map<String, String> indexes = new HashMap<String, String>();
+        Cursor cursor = this.db.rawQuery("SELECT name, sql FROM sqlite_master WHERE type = 'index' AND tbl_name = ?",
+                new String[]{table});
+        try {
+            while (cursor.moveToNext()) {
+                String name = cursor.getString(0);
+                if (!name.startsWith(AUTO_INDEX_PREFIX) && !cursor.isNull(1)) {
+                    indexes.put(name.toLowerCase(Locale.US), cursor.getString(1));
+                }
+            }
+        } finally {
+            cursor.close();
+        }
+        return indexes;
+    }
+
+    private boolean hasTable(String table) {
+        Cursor cursor = this.db.rawQuery("SELECT 1 FROM sqlite_master WHERE type = 'table' AND name = ?",
+                new String[]{table});
+        try {
+            return cursor.moveToFirst();
+        } finally {
+            cursor.close();
+        }
+    }
+
+    private Map<String, String> getHashes() {
+        if (this.hashes == null) {
+            Map<String, String> hashes = new HashMap<String, String>();
+            this.db.execSQL(String.format("CREATE TABLE IF NOT EXISTS %s (name TEXT PRIMARY KEY, hash TEXT NOT NULL)",
+                    META_TABLE));
+            Cursor cursor = this.db.rawQuery(String.format("SELECT name, hash FROM %s", META_TABLE), null);
+            try {
+                while (cursor.moveToNext()) {
+                    hashes.put(cursor.getString(0), cursor.getString(1));
+                }
+            } finally {
+                cursor.close();
+            }
+            this.hashes = hashes;
+        }
+        return this.hashes;
+    }
+
+    private void record(String table, String hash) {
+        this.db.execSQL(String.format("INSERT OR REPLACE INTO %s (name, hash) VALUES (?, ?)", META_TABLE),
+                new Object[]{table, hash});
+        this.getHashes().put(table, hash);
+    }
+
+    /**
+     * SQLite keeps the text of CREATE INDEX without IF NOT EXISTS; spaces and case are ignored when comparing.
+     */
+    private static String normalize(String sql) {
+        return sql.replaceAll("(?i)\\s+IF\\s+NOT\\s+EXISTS\\s+", " ").replaceAll("\\s+", " ").trim()
+                .toLowerCase(Locale.US);
+    }
+
+    static String hash(List<String> statements) throws OmxException {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-1");
+            for (String statement : statements) {
+                digest.update(statement.getBytes("UTF-8"));
+                digest.update((byte) ';');
+            }
+            StringBuilder builder = new StringBuilder();
+            for (byte value : digest.digest()) {
+                builder.append(String.format("%02x", value));
+            }
+            return builder.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new OmxException(e);
+        } catch (UnsupportedEncodingException e) {
+            throw new OmxException(e);
+        }
+    }
+
+    private static class ExistingColumn {
+        private String type;
+        private int pk;
+    }
+}
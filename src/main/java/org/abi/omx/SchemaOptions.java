@@ -0,0 +1,206 @@
+package org.abi.omx;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Options used when a schema opens its database, see {@link Database#createSchema(String, SchemaOptions)}. Options
+ * left unset keep the SQLite defaults; {@link Schema#getEffectiveOptions()} reports the values actually in use. The
+ * cache size, mmap size, temp store and synchronous mode are connection settings: they apply to the main connection
+ * and the reader connections of the schema, but not to connections Android adds to its own pool.
+ */
+public class SchemaOptions {
+    public static final SchemaOptions DEFAULT = new Builder().build();
+
+    public enum Synchronous {
+        OFF, NORMAL, FULL, EXTRA
+    }
+
+    public enum TempStore {
+        DEFAULT, FILE, MEMORY
+    }
+
+    public enum JournalMode {
+        DELETE, TRUNCATE, PERSIST, MEMORY, WAL, OFF
+    }
+
+    private final boolean writeAheadLogging;
+    private final int readerConnections;
+    private final Integer pageSize;
+    private final Integer cacheSize;
+    private final Long mmapSize;
+    private final Synchronous synchronous;
+    private final TempStore tempStore;
+    private final JournalMode journalMode;
+
+    SchemaOptions(boolean writeAheadLogging, int readerConnections, Integer pageSize, Integer cacheSize,
+                  Long mmapSize, Synchronous synchronous, TempStore tempStore, JournalMode journalMode) {
+        this.writeAheadLogging = writeAheadLogging;
+        this.readerConnections = readerConnections;
+        this.pageSize = pageSize;
+        this.cacheSize = cacheSize;
+        this.mmapSize = mmapSize;
+        this.synchronous = synchronous;
+        this.tempStore = tempStore;
+        this.journalMode = journalMode;
+    }
+
+    public static Builder builder() {
+        return new Builder();
+    }
+
+    public boolean isWriteAheadLogging() {
+        return this.writeAheadLogging;
+    }
+
+    public int getReaderConnections() {
+        return this.readerConnections;
+    }
+
+    public Integer getPageSize() {
+        return this.pageSize;
+    }
+
+    public Integer getCacheSize() {
+        return this.cacheSize;
+    }
+
+    public Long getMmapSize() {
+        return this.mmapSize;
+    }
+
+    public Synchronous getSynchronous() {
+        return this.synchronous;
+    }
+
+    public TempStore getTempStore() {
+        return this.tempStore;
+    }
+
+    public JournalMode getJournalMode() {
+        return this.journalMode;
+    }
+
+    /**
+     * Pragmas for the write connection which must run before write-ahead logging is enabled. The page size only
+     * takes effect on an empty database.
+     */
+    List<String> getDatabasePragmas() {
+        List<String> pragmas = new ArrayList<String>();
+        if (this.pageSize != null) {
+            pragmas.add(String.format("PRAGMA page_size = %d", this.pageSize));
+        }
+        if (this.journalMode != null && this.journalMode != JournalMode.WAL) {
+            pragmas.add(String.format("PRAGMA journal_mode = %s", this.journalMode.name()));
+        }
+        return pragmas;
+    }
+
+    /**
+     * Pragmas which are local to a connection. They run on the write connection after write-ahead logging is
+     * enabled, which resets the synchronous mode, and on every reader connection of the schema. Connections Android
+     * opens on its own for the database are not reached.
+     */
+    List<String> getConnectionPragmas() {
+        List<String> pragmas = new ArrayList<String>();
+        if (this.synchronous != null) {
+            pragmas.add(String.format("PRAGMA synchronous = %d", this.synchronous.ordinal()));
+        }
+        if (this.cacheSize != null) {
+            pragmas.add(String.format("PRAGMA cache_size = %d", this.cacheSize));
+        }
+        if (this.mmapSize != null) {
+            pragmas.add(String.format("PRAGMA mmap_size = %d", this.mmapSize));
+        }
+        if (this.tempStore != null) {
+            pragmas.add(String.format("PRAGMA temp_store = %d", this.tempStore.ordinal()));
+        }
+        return pragmas;
+    }
+
+    public static class Builder {
+        private boolean writeAheadLogging;
+        private int readerConnections;
+        private Integer pageSize;
+        private Integer cacheSize;
+        private Long mmapSize;
+        private Synchronous synchronous;
+        private TempStore tempStore;
+        private JournalMode journalMode;
+
+        /**
+         * Opens the database in write-ahead logging mode, so readers no longer block the writer and the other way round.
+         */
+        public Builder writeAheadLogging(boolean enabled) {
+            this.writeAheadLogging = enabled;
+            this.journalMode = enabled ? JournalMode.WAL : null;
+            return this;
+        }
+
+        /**
+         * Number of read-only connections queries are spread over. They are only opened in write-ahead logging mode;
+         * zero runs every query on the main connection.
+         */
+        public Builder readerConnections(int count) {
+            if (count < 0) {
+                throw new IllegalArgumentException(String.format("Invalid number of reader connections [%d].", count));
+            }
+            this.readerConnections = count;
+            return this;
+        }
+
+        /**
+         * Page size in bytes, a power of two between 512 and 65536. It only applies to a newly created database.
+         */
+        public Builder pageSize(int bytes) {
+            if (bytes < 512 || bytes > 65536 || (bytes & (bytes - 1)) != 0) {
+                throw new IllegalArgumentException(String.format("Invalid page size [%d].", bytes));
+            }
+            this.pageSize = bytes;
+            return this;
+        }
+
+        /**
+         * Size of the page cache of every connection; positive values count pages, negative values kibibytes.
+         */
+        public Builder cacheSize(int size) {
+            this.cacheSize = size;
+            return this;
+        }
+
+        /**
+         * Maximum number of bytes of the database file which are memory mapped, zero disables memory mapped I/O.
+         */
+        public Builder mmapSize(long bytes) {
+            if (bytes < 0) {
+                throw new IllegalArgumentException(String.format("Invalid mmap size [%d].", bytes));
+            }
+            this.mmapSize = bytes;
+            return this;
+        }
+
+        public Builder synchronous(Synchronous synchronous) {
+            this.synchronous = synchronous;
+            return this;
+        }
+
+        public Builder tempStore(TempStore tempStore) {
+            this.tempStore = tempStore;
+            return this;
+        }
+
+        /**
+         * Selects the journal mode; WAL is the same as {@link #writeAheadLogging(boolean)}.
+         */
+        public Builder journalMode(JournalMode journalMode) {
+            this.journalMode = journalMode;
+            this.writeAheadLogging = journalMode == JournalMode.WAL;
+            return this;
+        }
+
+        public SchemaOptions build() {
+            return new SchemaOptions(this.writeAheadLogging, this.readerConnections, this.pageSize, this.cacheSize,
+                    this.mmapSize, this.synchronous, this.tempStore, this.journalMode);
+        }
+    }
+}
@@ -0,0 +1,52 @@
+package org.abi.omx;
+
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * A statement which took longer than the slow query threshold, with the plan SQLite chose for it.
+ */
+public class SlowQuery {
+    private final QueryEvent event;
+    private final List<String> plan;
+    private final List<String> fullScans;
+
+    SlowQuery(QueryEvent event, List<String> plan, List<String> fullScans) {
+        this.event = event;
+        this.plan = Collections.unmodifiableList(plan);
+        this.fullScans = Collections.unmodifiableList(fullScans);
+    }
+
+    public QueryEvent getEvent() {
+        return this.event;
+    }
+
+    public String getSql() {
+        return this.event.getSql();
+    }
+
+    /**
+     * Returns the detail lines of EXPLAIN QUERY PLAN. Placeholders are explained unbound, which may differ from the
+     * plan for the actual values in rare cases.
+     */
+    public List<String> getPlan() {
+        return this.plan;
+    }
+
+    /**
+     * Returns the plan lines which scan a whole table without an index.
+     */
+    public List<String> getFullScans() {
+        return this.fullScans;
+    }
+
+    public boolean hasFullScan() {
+        return !this.fullScans.isEmpty();
+    }
+
+    @Override
+    public String toString() {
+        return String.format("Slow query [%s] took [%dms], plan %s", this.getSql(),
+                this.event.getTotalNanos() / 1000000, this.plan);
+    }
+}
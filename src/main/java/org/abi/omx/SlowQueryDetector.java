@@ -0,0 +1,136 @@
+package org.abi.omx;
+
+import android.database.Cursor;
+import android.database.SQLException;
+import android.database.sqlite.SQLiteDatabase;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Query listener which explains statements slower than a threshold on the reader threads of the schema and reports
+ * their plans. A statement is explained at most once per interval, so a slow query on a hot path does not
+ * turn into a stream of extra queries.
+ */
+public class SlowQueryDetector implements QueryListener {
+    public static final long DEFAULT_INTERVAL = 60000;
+    private static final int MAX_STATEMENTS = 256;
+
+    private final Schema schema;
+    private final long thresholdNanos;
+    private final SlowQueryListener listener;
+    private volatile long intervalMillis;
+    private final Map<String, Long> explained;
+
+    SlowQueryDetector(Schema schema, long thresholdMillis, SlowQueryListener listener) {
+        this.schema = schema;
+        this.thresholdNanos = thresholdMillis * 1000000;
+        this.listener = listener;
+        this.intervalMillis = DEFAULT_INTERVAL;
+        this.explained = new LinkedHashMap<String, Long>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Long> eldest) {
+                return this.size() > MAX_STATEMENTS;
+            }
+        };
+    }
+
+    public long getThresholdMillis() {
+        return this.thresholdNanos / 1000000;
+    }
+
+    public long getIntervalMillis() {
+        return this.intervalMillis;
+    }
+
+    /**
+     * Sets how long a statement is not explained again after it was reported.
+     */
+    public void setIntervalMillis(long intervalMillis) {
+        this.intervalMillis = intervalMillis;
+    }
+
+    @Override
+    public void onQuery(final QueryEvent event) {
+        if (event.getTotalNanos() < this.thresholdNanos) {
+            return;
+        }
+        long now = System.currentTimeMillis();
+        synchronized (this.explained) {
+            Long last = this.explained.get(event.getSql());
+            if (last != null && now - last < this.intervalMillis) {
+                return;
+            }
+            this.explained.put(event.getSql(), now);
+        }
+        this.schema.getReadExecutor().execute(new Runnable() {
+            @Override
+            public void run() {
+                SlowQueryDetector.this.explain(event);
+            }
+        });
+    }
+
+    private void explain(QueryEvent event) {
+        List<String> plan = new ArrayList<String>();
+        List<String> fullScans = new ArrayList<String>();
+        try {
+            SQLiteDatabase db = this.schema.getReadDatabase();
+            Set<String> tables = getTables(db);
+            Cursor cursor = db.rawQuery("EXPLAIN QUERY PLAN " + event.getSql(), null);
+            try {
+                int column = cursor.getColumnIndex("detail");
+                while (column >= 0 && cursor.moveToNext()) {
+                    String detail = cursor.getString(column);
+                    plan.add(detail);
+                    if (isFullScan(detail, tables)) {
+                        fullScans.add(detail);
+                    }
+                }
+            } finally {
+                cursor.close();
+            }
+        } catch (SQLException e) {
+            Log.w(this.schema.getTag(), String.format("Cannot explain [%s].", event.getSql()), e);
+            return;
+        }
+        try {
+            this.listener.onSlowQuery(new SlowQuery(event, plan, fullScans));
+        } catch (RuntimeException e) {
+            Log.e(this.schema.getTag(), "Slow query listener failed.", e);
+        }
+    }
+
+    private static Set<String> getTables(SQLiteDatabase db) {
+        Set<String> tables = new HashSet<String>();
+        Cursor cursor = db.rawQuery("SELECT name FROM sqlite_master WHERE type = 'table'", null);
+        try {
+            while (cursor.moveToNext()) {
+                tables.add(cursor.getString(0).toLowerCase(Locale.US));
+            }
+        } finally {
+            cursor.close();
+        }
+        return tables;
+    }
+
+    /**
+     * A plain SCAN of one of the tables, as opposed to a scan using an index or of a subquery, common table expression
+     * or constant row. Older versions of SQLite write SCAN TABLE name, newer ones SCAN name.
+     */
+    static boolean isFullScan(String detail, Set<String> tables) {
+        String value = detail.toLowerCase(Locale.US);
+        if (!value.startsWith("scan ") || value.contains(" using ")) {
+            return false;
+        }
+        String[] words = value.split("\\s+");
+        int index = words.length > 2 && words[1].equals("table") ? 2 : 1;
+        return index < words.length && tables.contains(words[index]);
+    }
+}
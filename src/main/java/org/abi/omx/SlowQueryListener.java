@@ -0,0 +1,10 @@
+package org.abi.omx;
+
+/**
+ * Receives the plans of slow statements, see {@link Schema#enableSlowQueryDetection(long, SlowQueryListener)}. Called
+ * on a reader thread of the schema, the same threads that run the asynchronous reads, so a slow listener holds them
+ * up; hand longer work over to another thread.
+ */
+public interface SlowQueryListener {
+    void onSlowQuery(SlowQuery query);
+}
@@ -0,0 +1,71 @@
+package org.abi.omx;
+
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * LRU cache of compiled statements keyed by their SQL text. A statement is checked out of the cache while it is
+ * bound and executed, so two threads never share the bindings of one program.
+ */
+class StatementCache {
+    public static final int DEFAULT_CAPACITY = 32;
+
+    private final SQLiteDatabase db;
+    private final LinkedHashMap<String, SQLiteStatement> statements;
+
+    public StatementCache(SQLiteDatabase db) {
+        this(db, DEFAULT_CAPACITY);
+    }
+
+    public StatementCache(SQLiteDatabase db, final int capacity) {
+        this.db = db;
+        this.statements = new LinkedHashMap<String, SQLiteStatement>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, SQLiteStatement> eldest) {
+                if (this.size() > capacity) {
+                    eldest.getValue().close();
+                    return true;
+                }
+                return false;
+            }
+        };
+    }
+
+    public SQLiteStatement acquire(String sql) {
+        SQLiteStatement statement;
+        synchronized (this.statements) {
+            statement = this.statements.remove(sql);
+        }
+        if (statement == null) {
+            statement = this.db.compileStatement(sql);
+        }
+        return statement;
+    }
+
+    public void release(String sql, SQLiteStatement statement) {
+        statement.clearBindings();
+        SQLiteStatement previous;
+        synchronized (this.statements) {
+            previous = this.statements.put(sql, statement);
+        }
+        if (previous != null && previous != statement) {
+            previous.close();
+        }
+    }
+
+    public void clear() {
+        List<SQLiteStatement> closing;
+        synchronized (this.statements) {
+            closing = new ArrayList<SQLiteStatement>(this.statements.values());
+            this.statements.clear();
+        }
+        for (SQLiteStatement statement : closing) {
+            statement.close();
+        }
+    }
+}
@@ -1,16 +1,25 @@
 package org.abi.omx;
 
 
-import android.content.ContentValues;
 import android.database.Cursor;
+import android.database.sqlite.SQLiteStatement;
 
 import java.util.ArrayList;
+import java.util.Iterator;
 import java.util.List;
 
 /**
  * Created by abi on 06.05.15.
  */
 public abstract class Store<T extends Entity> {
+    public static final int DEFAULT_BATCH_SIZE = 1000;
+    private static final int STATEMENT_CAPACITY = 4;
+
+    private int batchSize = DEFAULT_BATCH_SIZE;
+    private AsyncStore<T> async;
+    private StatementCache statementCache;
+    private volatile EntityCache entityCache;
+    private volatile RowPlan<T> getPlan;
 
     protected abstract Schema getSchema();
 
@@ -18,72 +27,272 @@ public abstract class Store<T extends Entity> {
 
     protected abstract TableDescriptor getTableDescriptor();
 
+    /**
+     * Returns the compiled statements of this table. They are kept per store, so the writes of one table do not push
+     * the statements of another out of the shared cache of the schema.
+     */
+    private synchronized StatementCache getStatementCache() {
+        if (this.statementCache == null) {
+            this.statementCache = new StatementCache(this.getSchema().getRawDatabase(), STATEMENT_CAPACITY);
+        }
+        return this.statementCache;
+    }
+
+    EntityCache getEntityCache() {
+        return this.entityCache;
+    }
+
+    void setEntityCache(EntityCache entityCache) {
+        this.entityCache = entityCache;
+    }
+
+    /**
+     * Drops the state built for the current table definition, e.g. after the table was dropped.
+     */
+    synchronized void reset() {
+        if (this.statementCache != null) {
+            this.statementCache.clear();
+        }
+        this.getPlan = null;
+        EntityCache entityCache = this.entityCache;
+        if (entityCache != null) {
+            entityCache.clear();
+        }
+    }
+
     public void create(T entity) throws OmxException {
-        Object[] values =
-                ReflectionHelper.getInstance().getValues(this.getTableDescriptor(), entity);
-        this.getSchema().getRawDatabase().execSQL(this.getTableDescriptor().insertSQL, values);
+        this.execute(this.insertOperation(), entity);
     }
 
     public void remove(T entity) throws OmxException {
-        TableDescriptor tableDescriptor = this.getTableDescriptor();
-        Object[] pks = this.getPKs(entity);
-
-        this.getSchema().getRawDatabase().delete(tableDescriptor.name,
-                tableDescriptor.getWhereClause,
-                Utils.objectArrayToStringArray(pks));
+        this.execute(this.deleteOperation(), entity);
     }
 
     public void update(T entity) throws OmxException {
-        try {
-            TableDescriptor tableDescriptor = this.getTableDescriptor();
-            ContentValues values = new ContentValues();
-            for (FieldDescriptor fieldDescriptor : tableDescriptor.fieldDescriptors) {
-                if (fieldDescriptor.pk == null) {
-                    values.put(fieldDescriptor.name, fieldDescriptor.field.get(entity).toString());
-                }
+        this.execute(this.updateOperation(), entity);
+    }
+
+    /**
+     * Creates the entity or updates the stored row with the same primary key. On SQLite 3.24 and later this is a
+     * single INSERT ... ON CONFLICT DO UPDATE, otherwise an UPDATE followed by an INSERT when nothing was updated.
+     */
+    public void save(T entity) throws OmxException {
+        this.execute(this.saveOperation(), entity);
+    }
+
+    public int getBatchSize() {
+        return this.batchSize;
+    }
+
+    public void setBatchSize(int batchSize) {
+        this.batchSize = batchSize;
+    }
+
+    public int[] createAll(Iterable<T> entities) throws OmxException {
+        return this.createAll(entities, this.getBatchSize());
+    }
+
+    public int[] createAll(Iterable<T> entities, int batchSize) throws OmxException {
+        return this.executeBatch(entities, batchSize, this.insertOperation());
+    }
+
+    public int[] updateAll(Iterable<T> entities) throws OmxException {
+        return this.updateAll(entities, this.getBatchSize());
+    }
+
+    public int[] updateAll(Iterable<T> entities, int batchSize) throws OmxException {
+        return this.executeBatch(entities, batchSize, this.updateOperation());
+    }
+
+    public int[] removeAll(Iterable<T> entities) throws OmxException {
+        return this.removeAll(entities, this.getBatchSize());
+    }
+
+    public int[] removeAll(Iterable<T> entities, int batchSize) throws OmxException {
+        return this.executeBatch(entities, batchSize, this.deleteOperation());
+    }
+
+    public int[] saveAll(Iterable<T> entities) throws OmxException {
+        return this.saveAll(entities, this.getBatchSize());
+    }
+
+    public int[] saveAll(Iterable<T> entities, int batchSize) throws OmxException {
+        return this.executeBatch(entities, batchSize, this.saveOperation());
+    }
+
+    private BatchOperation<T> insertOperation() {
+        final TableDescriptor tableDescriptor = this.getTableDescriptor();
+        return new BatchOperation<T>(tableDescriptor.insertSQL) {
+            @Override
+            int execute(SQLiteStatement[] statements, T entity) throws OmxException {
+                Binder.bindInsert(statements[0], tableDescriptor, entity);
+                return this.executeInsert(statements, 0);
+            }
+        };
+    }
+
+    private BatchOperation<T> updateOperation() {
+        final TableDescriptor tableDescriptor = this.getTableDescriptor();
+        return new BatchOperation<T>(tableDescriptor.updateSQL) {
+            @Override
+            int execute(SQLiteStatement[] statements, T entity) throws OmxException {
+                Binder.bindUpdate(statements[0], tableDescriptor, entity);
+                return this.executeUpdateDelete(statements, 0);
             }
-            this.getSchema().getRawDatabase().update(tableDescriptor.name,
-                    values,
-                    tableDescriptor.getWhereClause,
-                    Utils.objectArrayToStringArray(this.getPKs(entity)));
-        } catch (IllegalAccessException e) {
-            throw new OmxException(e);
+        };
+    }
+
+    private BatchOperation<T> deleteOperation() {
+        final TableDescriptor tableDescriptor = this.getTableDescriptor();
+        return new BatchOperation<T>(tableDescriptor.deleteSQL) {
+            @Override
+            int execute(SQLiteStatement[] statements, T entity) throws OmxException {
+                Binder.bindKeys(statements[0], tableDescriptor, entity, 1);
+                return this.executeUpdateDelete(statements, 0);
+            }
+        };
+    }
+
+    private BatchOperation<T> saveOperation() {
+        final TableDescriptor tableDescriptor = this.getTableDescriptor();
+        if (this.getSchema().supportsUpsert()) {
+            return new BatchOperation<T>(tableDescriptor.upsertSQL) {
+                @Override
+                int execute(SQLiteStatement[] statements, T entity) throws OmxException {
+                    Binder.bindInsert(statements[0], tableDescriptor, entity);
+                    return this.executeInsert(statements, 0);
+                }
+            };
         }
+        return new BatchOperation<T>(tableDescriptor.updateSQL, tableDescriptor.insertSQL) {
+            @Override
+            int execute(SQLiteStatement[] statements, T entity) throws OmxException {
+                Binder.bindUpdate(statements[0], tableDescriptor, entity);
+                if (this.executeUpdateDelete(statements, 0) == 0) {
+                    Binder.bindInsert(statements[1], tableDescriptor, entity);
+                    this.executeInsert(statements, 1);
+                }
+                return 1;
+            }
+        };
     }
 
-    public void save(T entity) throws OmxException {
-        Object[] pks = this.getPKs(entity);
-        T old = this.get(pks);
-        if (old == null) {
-            this.create(entity);
-        } else {
-            this.update(entity);
+    private int execute(BatchOperation<T> operation, T entity) throws OmxException {
+        StatementCache statementCache = this.getStatementCache();
+        SQLiteStatement[] statements = new SQLiteStatement[operation.sqls.length];
+        try {
+            for (int i = 0; i < statements.length; i++) {
+                statements[i] = statementCache.acquire(operation.sqls[i]);
+            }
+            operation.startProbe(this.getSchema());
+            int count = operation.execute(statements, entity);
+            operation.finishProbe(this.getSchema());
+            this.evict(entity);
+            this.getSchema().onTableChanged(this.getTableDescriptor().name);
+            return count;
+        } finally {
+            this.release(operation, statements);
         }
     }
 
-    private Object[] getPKs(T entity) throws OmxException {
+    /**
+     * Runs the operation for every entity, committing a transaction after each chunk of batchSize entities. When
+     * the caller already holds a transaction every chunk is a savepoint in it and is committed with it. Returns the
+     * number of affected rows per chunk.
+     */
+    private int[] executeBatch(Iterable<T> entities, int batchSize, BatchOperation<T> operation)
+            throws OmxException {
+        if (batchSize <= 0) {
+            throw new OmxException(String.format("Invalid batch size [%d].", batchSize));
+        }
+        StatementCache statementCache = this.getStatementCache();
+        SQLiteStatement[] statements = new SQLiteStatement[operation.sqls.length];
+        List<Integer> counts = new ArrayList<Integer>();
         try {
-            List<Object> pks = new ArrayList<Object>();
-            for (FieldDescriptor fieldDescriptor : getTableDescriptor().fieldDescriptors) {
-                if (fieldDescriptor.pk != null) {
-                    pks.add(fieldDescriptor.field.get(entity));
+            for (int i = 0; i < statements.length; i++) {
+                statements[i] = statementCache.acquire(operation.sqls[i]);
+            }
+            Iterator<T> iterator = entities.iterator();
+            while (iterator.hasNext()) {
+                Transaction transaction = this.begin();
+                boolean committed = false;
+                int count = 0;
+                try {
+                    operation.startProbe(this.getSchema());
+                    for (int size = 0; size < batchSize && iterator.hasNext(); size++) {
+                        T entity = iterator.next();
+                        count += operation.execute(statements, entity);
+                        this.evict(entity);
+                    }
+                    operation.finishProbe(this.getSchema());
+                    this.getSchema().onTableChanged(this.getTableDescriptor().name);
+                    transaction.commit();
+                    committed = true;
+                } finally {
+                    if (!committed) {
+                        transaction.rollback();
+                    }
                 }
+                counts.add(count);
             }
-            return pks.toArray();
-        } catch (IllegalAccessException e) {
-            throw new OmxException(e);
+        } finally {
+            this.release(operation, statements);
+        }
+        int[] results = new int[counts.size()];
+        for (int i = 0; i < results.length; i++) {
+            results[i] = counts.get(i);
+        }
+        return results;
+    }
+
+    private void release(BatchOperation<T> operation, SQLiteStatement[] statements) {
+        StatementCache statementCache = this.getStatementCache();
+        for (int i = 0; i < statements.length; i++) {
+            if (statements[i] != null) {
+                statementCache.release(operation.sqls[i], statements[i]);
+            }
+        }
+    }
+
+    /**
+     * Drops the cached instance of the entity, if the entity cache of the table is enabled, after it was written.
+     */
+    private void evict(T entity) throws OmxException {
+        EntityCache entityCache = this.entityCache;
+        if (entityCache != null) {
+            entityCache.remove(EntityCache.key(this.getTableDescriptor(), entity));
         }
     }
 
     public T get(Object... args) throws OmxException {
-        List<Object> values = new ArrayList<Object>();
-        for (Object value : args) {
-            values.add(value);
+        EntityCache entityCache = this.entityCache;
+        if (entityCache == null) {
+            return this.load(args);
+        }
+        List<Object> key = EntityCache.key(args);
+        T entity = (T) entityCache.get(key);
+        if (entity == null) {
+            long generation = entityCache.getGeneration();
+            entity = this.load(args);
+            if (entity != null) {
+                entityCache.put(key, entity, generation);
+            }
         }
-        Cursor cursor =
-                this.getSchema().executeSQL(this.getTableDescriptor().getSQL, values);
+        return entity;
+    }
+
+    private T load(Object... args) throws OmxException {
+        String sql = this.getTableDescriptor().getSQL;
+        QueryProbe probe = QueryProbe.start(this.getSchema(), QueryEvent.Kind.READ, sql, args.length);
+        Cursor cursor = this.getSchema().rawQuery(sql, args);
         try {
+            if (probe != null) {
+                probe.executed(cursor);
+            }
             if (cursor == null || cursor.getCount() == 0) {
+                if (probe != null) {
+                    probe.finish(0);
+                }
                 return null;
             }
             if (cursor.getCount() > 1) {
@@ -92,7 +301,17 @@ public abstract class Store<T extends Entity> {
                         cursor.getCount()));
             }
 
-            return (T) Mapper.getInstance().mapOne(cursor, this.getEntityClass());
+            RowPlan<T> plan = this.getPlan;
+            if (plan == null) {
+                plan = Mapper.getInstance().getPlan(cursor, (Class<T>) this.getEntityClass());
+                this.getPlan = plan;
+            }
+            cursor.moveToFirst();
+            T entity = Mapper.getInstance().map(cursor, plan);
+            if (probe != null) {
+                probe.finish(1);
+            }
+            return entity;
         } finally {
             if (cursor != null) {
                 cursor.close();
@@ -114,9 +333,79 @@ public abstract class Store<T extends Entity> {
         return (Query<T>)this.getSchema().query(this.getEntityClass());
     }
 
+    /**
+     * Returns the asynchronous view of this store.
+     */
+    public synchronized AsyncStore<T> async() {
+        if (this.async == null) {
+            this.async = new AsyncStore<T>(this);
+        }
+        return this.async;
+    }
+
     public Transaction begin() {
         return this.getSchema().begin();
     }
 
-}
+    /**
+     * One write, possibly made of several statements. While probed, every statement counts its executions, affected
+     * rows and time, and is reported as its own event, e.g. the UPDATE and the INSERT of a save without upsert.
+     */
+    private static abstract class BatchOperation<T> {
+        private final String[] sqls;
+        private int[] executions;
+        private int[] rows;
+        private long[] nanos;
+
+        BatchOperation(String... sqls) {
+            this.sqls = sqls;
+        }
+
+        abstract int execute(SQLiteStatement[] statements, T entity) throws OmxException;
+
+        void startProbe(Schema schema) {
+            if (schema.hasQueryListeners()) {
+                this.executions = new int[this.sqls.length];
+                this.rows = new int[this.sqls.length];
+                this.nanos = new long[this.sqls.length];
+            } else {
+                this.executions = null;
+            }
+        }
+
+        void finishProbe(Schema schema) {
+            if (this.executions == null) {
+                return;
+            }
+            for (int i = 0; i < this.sqls.length; i++) {
+                if (this.executions[i] > 0) {
+                    QueryProbe.reportWrite(schema, this.sqls[i], this.executions[i], this.rows[i], this.nanos[i]);
+                }
+            }
+            this.executions = null;
+        }
+
+        int executeInsert(SQLiteStatement[] statements, int index) {
+            long start = this.executions == null ? 0 : System.nanoTime();
+            statements[index].executeInsert();
+            this.record(index, 1, start);
+            return 1;
+        }
+
+        int executeUpdateDelete(SQLiteStatement[] statements, int index) {
+            long start = this.executions == null ? 0 : System.nanoTime();
+            int count = statements[index].executeUpdateDelete();
+            this.record(index, count, start);
+            return count;
+        }
+
+        private void record(int index, int count, long start) {
+            if (this.executions != null) {
+                this.executions[index]++;
+                this.rows[index] += count;
+                this.nanos[index] += System.nanoTime() - start;
+            }
+        }
+    }
 
+}
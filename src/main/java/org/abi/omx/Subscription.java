@@ -0,0 +1,10 @@
+package org.abi.omx;
+
+/**
+ * Handle of an observed query. Cancelling it stops further notifications.
+ */
+public interface Subscription {
+    void cancel();
+
+    boolean isCancelled();
+}
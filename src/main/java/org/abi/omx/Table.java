@@ -12,4 +12,10 @@ import java.lang.annotation.Target;
 @Target(ElementType.TYPE)
 public @interface Table {
     String name() default "";
+
+    /**
+     * Indexes declared on the class, for indexes a field takes part in more than once or to keep the column order in
+     * one place.
+     */
+    TableIndex[] indexes() default {};
 }
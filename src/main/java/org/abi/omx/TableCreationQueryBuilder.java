@@ -1,7 +1,9 @@
 package org.abi.omx;
 
 import java.util.ArrayList;
-import java.util.HashMap;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 
@@ -17,16 +19,41 @@ class TableCreationQueryBuilder {
         this.fieldDescriptors = this.tableDescriptor.fieldDescriptors;
     }
 
-    public String compile() throws OmxException {
-        String table = this.compileTable();
+    /**
+     * Returns the statement creating the table followed by one statement per index; SQLite runs a single statement
+     * per call, so they have to be executed one by one.
+     */
+    public List<String> compile() throws OmxException {
+        List<String> statements = new ArrayList<String>();
+        statements.add(this.compileTableStatement());
+        statements.addAll(this.compileIndexStatements());
+        return statements;
+    }
+
+    public String compileTableStatement() throws OmxException {
+        return this.compileTableStatement(this.tableDescriptor.name);
+    }
+
+    /**
+     * Compiles the table under another name, used to rebuild a table whose definition changed.
+     */
+    public String compileTableStatement(String name) throws OmxException {
+        String table = this.compileTable(name);
         String fields = this.compileFields();
         String primaryKeys = this.compilePrimaryKeys();
-        String indexes = this.compileIndexes();
-        return String.format("%s (%s %s); %s", table, fields, primaryKeys, indexes);
+        return String.format("%s (%s %s)", table, fields, primaryKeys);
+    }
+
+    public List<String> compileIndexStatements() throws OmxException {
+        List<String> statements = new ArrayList<String>();
+        for (IndexDefinition index : this.getIndexes()) {
+            statements.add(index.compile(this.tableDescriptor.name));
+        }
+        return statements;
     }
 
-    private String compileTable() {
-        return String.format("CREATE TABLE IF NOT EXISTS %s", tableDescriptor.name);
+    private String compileTable(String name) {
+        return String.format("CREATE TABLE IF NOT EXISTS %s", name);
     }
 
     private String compilePrimaryKeys() throws OmxException {
@@ -46,76 +73,73 @@ class TableCreationQueryBuilder {
         return String.format("PRIMARY KEY (%s)", content);
     }
 
-    private String compileIndexes() throws OmxException {
-        Map<String, List<String>> indexes = new HashMap<String, List<String>>();
-        Map<String, List<String>> unqiueIndexes = new HashMap<String, List<String>>();
+    /**
+     * Collects the indexes declared on the fields and on the class, with the columns of every index in order.
+     */
+    public List<IndexDefinition> getIndexes() throws OmxException {
+        Map<String, IndexDefinition> indexes = new LinkedHashMap<String, IndexDefinition>();
+        int declaration = 0;
         for (FieldDescriptor descriptor : fieldDescriptors) {
             if (descriptor.index != null) {
-                String indexName = descriptor.index.name();
-                List<String> fields = indexes.get(indexName);
-                if (fields == null) {
-                    fields = new ArrayList<String>();
-                    indexes.put(indexName, fields);
-                }
-                String content = descriptor.name;
-                if (descriptor.index.order() != null) {
-                    content = content + " " + descriptor.index.order();
-                }
-                fields.add(content);
+                this.getIndex(indexes, descriptor.index.name(), false).addColumn(descriptor.name,
+                        descriptor.index.order(), descriptor.index.position(), declaration, descriptor.index.where());
             }
             if (descriptor.uniqueIndex != null) {
-                String indexName = descriptor.uniqueIndex.name();
-                List<String> fields = unqiueIndexes.get(indexName);
-                if (fields == null) {
-                    fields = new ArrayList<String>();
-                    unqiueIndexes.put(indexName, fields);
-                }
-                String content = descriptor.name;
-                if (descriptor.uniqueIndex.order() != null) {
-                    content = content + " " + descriptor.uniqueIndex.order();
+                this.getIndex(indexes, descriptor.uniqueIndex.name(), true).addColumn(descriptor.name,
+                        descriptor.uniqueIndex.order(), descriptor.uniqueIndex.position(), declaration,
+                        descriptor.uniqueIndex.where());
+            }
+            declaration++;
+        }
+        for (TableIndex tableIndex : this.tableDescriptor.table.indexes()) {
+            if (indexes.containsKey(tableIndex.name())) {
+                throw new OmxException(String.format("Entity [%s] declares index [%s] more than once.",
+                        tableDescriptor.name, tableIndex.name()));
+            }
+            if (tableIndex.columns().length == 0) {
+                throw new OmxException(String.format("Entity [%s] has index [%s] without columns.",
+                        tableDescriptor.name, tableIndex.name()));
+            }
+            IndexDefinition index = this.getIndex(indexes, tableIndex.name(), tableIndex.unique());
+            for (int i = 0; i < tableIndex.columns().length; i++) {
+                String[] parts = tableIndex.columns()[i].trim().split("\\s+", 2);
+                if (!this.hasColumn(parts[0])) {
+                    throw new OmxException(String.format("Entity [%s] has index [%s] on unknown column [%s].",
+                            tableDescriptor.name, tableIndex.name(), parts[0]));
                 }
-                fields.add(content);
+                index.addColumn(parts[0], parts.length > 1 ? parts[1] : "", i, i, tableIndex.where());
             }
         }
+        for (IndexDefinition index : indexes.values()) {
+            index.sort();
+        }
+        return new ArrayList<IndexDefinition>(indexes.values());
+    }
 
-        StringBuilder builder = new StringBuilder();
-        for (Map.Entry<String, List<String>> entry : indexes.entrySet()) {
+    private IndexDefinition getIndex(Map<String, IndexDefinition> indexes, String name, boolean unique)
+            throws OmxException {
+        IndexDefinition index = indexes.get(name);
+        if (index == null) {
+            index = new IndexDefinition(name, unique);
+            indexes.put(name, index);
+        } else if (index.unique != unique) {
             /*
             Checking to ensure that there is no conflict with the unique indexes
              */
-            if (unqiueIndexes.containsKey(entry.getKey())) {
-                String message =
-                        String.format("Entity [%s] has index [%s] which conflicts with the name of a unique index.",
-                                tableDescriptor.name,
-                                entry.getKey());
-                throw new OmxException(message);
-            }
-            builder.append(String.format("\nCREATE INDEX %s ON %s ( ", entry.getKey(), tableDescriptor.name));
-            String content = "";
-            for (String item : entry.getValue()) {
-                if (content.length() > 0) {
-                    content = " ," + item;
-                } else {
-                    content = item;
-                }
-            }
-            builder.append(content);
-            builder.append(");\n");
+            throw new OmxException(
+                    String.format("Entity [%s] has index [%s] which conflicts with the name of a unique index.",
+                            tableDescriptor.name, name));
         }
-        for (Map.Entry<String, List<String>> entry : unqiueIndexes.entrySet()) {
-            builder.append(String.format("\nCREATE UNIQUE INDEX %s ON %s ( ", entry.getKey(), tableDescriptor.name));
-            String content = "";
-            for (String item : entry.getValue()) {
-                if (content.length() > 0) {
-                    content = " ," + item;
-                } else {
-                    content = item;
-                }
+        return index;
+    }
+
+    private boolean hasColumn(String name) {
+        for (FieldDescriptor descriptor : fieldDescriptors) {
+            if (descriptor.name.equalsIgnoreCase(name)) {
+                return true;
             }
-            builder.append(content);
-            builder.append(");\n");
         }
-        return builder.toString();
+        return false;
     }
 
     private String compileFields() {
@@ -135,3 +159,73 @@ class TableCreationQueryBuilder {
     }
 
 }
+
+class IndexDefinition {
+    final String name;
+    final boolean unique;
+    final List<IndexColumn> columns;
+    String where;
+
+    IndexDefinition(String name, boolean unique) {
+        this.name = name;
+        this.unique = unique;
+        this.columns = new ArrayList<IndexColumn>();
+        this.where = "";
+    }
+
+    void addColumn(String column, String order, int position, int declaration, String where) throws OmxException {
+        if (where.length() > 0) {
+            if (this.where.length() > 0 && !this.where.equals(where)) {
+                throw new OmxException(String.format("Index [%s] has conflicting conditions [%s] and [%s].",
+                        this.name, this.where, where));
+            }
+            this.where = where;
+        }
+        this.columns.add(new IndexColumn(column, order, position, declaration));
+    }
+
+    void sort() {
+        Collections.sort(this.columns, new Comparator<IndexColumn>() {
+            @Override
+            public int compare(IndexColumn left, IndexColumn right) {
+                if (left.position != right.position) {
+                    return left.position < right.position ? -1 : 1;
+                }
+                return left.declaration < right.declaration ? -1 : (left.declaration == right.declaration ? 0 : 1);
+            }
+        });
+    }
+
+    String compile(String table) {
+        StringBuilder content = new StringBuilder();
+        for (IndexColumn column : this.columns) {
+            if (content.length() > 0) {
+                content.append(", ");
+            }
+            content.append(column.name);
+            if (column.order.length() > 0) {
+                content.append(' ').append(column.order);
+            }
+        }
+        String sql = String.format("CREATE %sINDEX IF NOT EXISTS %s ON %s (%s)", this.unique ? "UNIQUE " : "",
+                this.name, table, content);
+        if (this.where.length() > 0) {
+            sql = sql + " WHERE " + this.where;
+        }
+        return sql;
+    }
+}
+
+class IndexColumn {
+    final String name;
+    final String order;
+    final int position;
+    final int declaration;
+
+    IndexColumn(String name, String order, int position, int declaration) {
+        this.name = name;
+        this.order = order.trim();
+        this.position = position;
+        this.declaration = declaration;
+    }
+}
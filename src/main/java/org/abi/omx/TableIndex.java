@@ -0,0 +1,25 @@
+package org.abi.omx;
+
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * Index declared on the class with {@link Table#indexes()}. Columns are given in index order and may carry their
+ * sort order, e.g. {"customer", "created DESC"}. Adding the selected columns after the filtered ones makes a covering
+ * index, which answers a query without reading the table.
+ */
+@Retention(RetentionPolicy.RUNTIME)
+@Target({})
+public @interface TableIndex {
+    String name();
+
+    String[] columns();
+
+    boolean unique() default false;
+
+    /**
+     * Predicate of a partial index, which needs SQLite 3.8.0.
+     */
+    String where() default "";
+}
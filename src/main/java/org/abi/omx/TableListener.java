@@ -0,0 +1,11 @@
+package org.abi.omx;
+
+import java.util.Set;
+
+/**
+ * Receives the names of the tables written through the stores of a schema. Writes inside a transaction are reported
+ * together once it is committed. Listeners are called on the notification thread of the schema.
+ */
+public interface TableListener {
+    void onTablesChanged(Set<String> tables);
+}
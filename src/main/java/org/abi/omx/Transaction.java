@@ -2,29 +2,79 @@ package org.abi.omx;
 
 import android.database.sqlite.SQLiteDatabase;
 
+import java.util.concurrent.atomic.AtomicInteger;
+
 /**
  * Created by abi on 05.05.15.
+ *
+ * The outermost transaction of a thread begins a SQLite transaction; a transaction begun while another one is open
+ * on the same connection becomes a savepoint inside it, so it can be rolled back on its own and is only made durable
+ * when the outermost transaction commits.
  */
 public abstract class Transaction {
+    /**
+     * How the outermost transaction locks the database. Both take the write lock when the transaction begins. Outside
+     * write-ahead logging mode EXCLUSIVE also keeps readers of other connections out until it ends, while IMMEDIATE
+     * lets them read until it commits. In write-ahead logging mode readers are never blocked and both behave alike.
+     */
+    public enum Mode {
+        EXCLUSIVE, IMMEDIATE
+    }
+
+    // SQLiteDatabase.execSQL classifies statements with DatabaseUtils.getSqlStatementType, which only looks at the
+    // first three letters: a statement starting with ROLLBACK is run as the end of the whole Android transaction
+    // instead of being passed to SQLite. The leading comment keeps ROLLBACK TO away from that check. This relies on
+    // an implementation detail of Android; should it change to skip comments, nested rollbacks would end the outer
+    // transaction.
+    private static final String ROLLBACK_TO = "/* omx */ ROLLBACK TO ";
+    private static final AtomicInteger savepoints = new AtomicInteger();
+
     private boolean rolledBack;
     private boolean committed;
     private boolean isTransactionStarted;
+    private String savepoint;
     private SQLiteDatabase db;
 
     public Transaction(SQLiteDatabase db) {
+        this(db, Mode.EXCLUSIVE);
+    }
+
+    public Transaction(SQLiteDatabase db, Mode mode) {
         this.db = db;
         this.isTransactionStarted = false;
         this.committed = false;
         this.rolledBack = false;
         if (!db.inTransaction()) {
-            db.beginTransaction();
+            if (mode == Mode.IMMEDIATE) {
+                db.beginTransactionNonExclusive();
+            } else {
+                db.beginTransaction();
+            }
+            this.isTransactionStarted = true;
+        } else {
+            this.savepoint = String.format("omx_%d", savepoints.incrementAndGet());
+            db.execSQL("SAVEPOINT " + this.savepoint);
         }
     }
 
     public void commit() {
+        if (this.committed || this.rolledBack) {
+            return;
+        }
         if (this.isTransactionStarted) {
             this.db.setTransactionSuccessful();
-            this.db.endTransaction();
+            try {
+                this.db.endTransaction();
+            } catch (RuntimeException e) {
+                // Android has ended the transaction even though the commit failed, it must not be ended again
+                this.rolledBack = true;
+                this.onRollback();
+                throw e;
+            }
+            this.committed = true;
+            this.onCommit();
+        } else if (this.savepoint != null) {
+            this.db.execSQL("RELEASE " + this.savepoint);
             this.committed = true;
         }
     }
@@ -38,9 +88,44 @@ public abstract class Transaction {
     }
 
     public void rollback() {
+        if (this.committed || this.rolledBack) {
+            return;
+        }
         if (this.isTransactionStarted) {
             this.rolledBack = true;
             this.db.endTransaction();
+            this.onRollback();
+        } else if (this.savepoint != null) {
+            this.rolledBack = true;
+            this.db.execSQL(ROLLBACK_TO + this.savepoint);
+            this.db.execSQL("RELEASE " + this.savepoint);
+            this.onRollbackToSavepoint();
         }
     }
+
+    protected boolean isStarted() {
+        return this.isTransactionStarted;
+    }
+
+    protected boolean isSavepoint() {
+        return this.savepoint != null;
+    }
+
+    /**
+     * Called after the transaction started by this object was committed.
+     */
+    protected void onCommit() {
+    }
+
+    /**
+     * Called after the transaction started by this object was rolled back.
+     */
+    protected void onRollback() {
+    }
+
+    /**
+     * Called after the savepoint of a nested transaction was rolled back; the outer transaction is still open.
+     */
+    protected void onRollbackToSavepoint() {
+    }
 }
@@ -14,4 +14,16 @@ public @interface UniqueIndex {
     String name();
 
     String order() default "";
+
+    /**
+     * Position of the column in a composite index. Columns without a position follow the positioned ones, and
+     * columns with equal positions keep their declaration order.
+     */
+    int position() default Integer.MAX_VALUE;
+
+    /**
+     * Predicate of a partial index, e.g. "deleted = 0". It may be given on any column of the index. Partial indexes
+     * need SQLite 3.8.0; creating one on an older version fails with an OmxException.
+     */
+    String where() default "";
 }
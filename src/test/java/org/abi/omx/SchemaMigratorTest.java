@@ -0,0 +1,175 @@
+package org.abi.omx;
+
+import android.content.Context;
+import android.database.Cursor;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.Config;
+
+import java.util.HashSet;
+import java.util.Set;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+@RunWith(RobolectricTestRunner.class)
+@Config(manifest = Config.NONE, sdk = 21)
+public class SchemaMigratorTest {
+    private static final String NAME = "omx-migration";
+    private static final String TABLE = "migrated";
+
+    private Context context;
+    private Schema schema;
+
+    @Before
+    public void setUp() throws Exception {
+        this.context = RuntimeEnvironment.application;
+        this.context.deleteDatabase(NAME + ".db");
+        this.schema = new DefaultSchema(this.context, NAME);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        this.schema.close();
+        this.context.deleteDatabase(NAME + ".db");
+    }
+
+    @Test
+    public void createsMissingTable() throws Exception {
+        this.schema.migrateTables(Version1.class);
+        assertTrue(this.getColumns().contains("name"));
+        assertEquals(1, this.schema.getUserVersion());
+    }
+
+    @Test
+    public void skipsUnchangedTable() throws Exception {
+        this.schema.migrateTables(Version1.class);
+        this.schema.migrateTables(Version1.class);
+        assertEquals(1, this.schema.getUserVersion());
+    }
+
+    @Test
+    public void createsDroppedTable() throws Exception {
+        this.schema.migrateTables(Version1.class);
+        this.schema.dropTable(Version1.class);
+        this.schema.migrateTables(Version1.class);
+        assertTrue(this.getColumns().contains("name"));
+        this.schema.getStore(Version1.class).create(version1(1, "first"));
+        assertNotNull(this.schema.getStore(Version1.class).get(1));
+    }
+
+    @Test
+    public void addsColumnInPlace() throws Exception {
+        this.schema.migrateTables(Version1.class);
+        this.schema.getStore(Version1.class).create(version1(1, "first"));
+        this.schema.migrateTables(Version2.class);
+        assertTrue(this.getColumns().contains("quantity"));
+        assertEquals(2, this.schema.getUserVersion());
+        Version2 entity = this.schema.getStore(Version2.class).get(1);
+        assertEquals("first", entity.name);
+        assertEquals(0, entity.quantity);
+    }
+
+    @Test
+    public void rebuildKeepsRows() throws Exception {
+        this.schema.migrateTables(Version2.class);
+        Version2 entity = new Version2();
+        entity.id = 1;
+        entity.name = "first";
+        entity.quantity = 5;
+        this.schema.getStore(Version2.class).create(entity);
+        this.schema.migrateTables(Version3.class);
+        assertFalse(this.getColumns().contains("name"));
+        assertEquals(5, this.schema.getStore(Version3.class).get(1).quantity);
+    }
+
+    @Test
+    public void createsAndDropsIndexes() throws Exception {
+        this.schema.migrateTables(Version1.class);
+        this.schema.migrateTables(Indexed.class);
+        assertTrue(this.hasIndex("migrated_name"));
+        this.schema.migrateTables(Version1.class);
+        assertFalse(this.hasIndex("migrated_name"));
+    }
+
+    private Set<String> getColumns() {
+        Set<String> columns = new HashSet<String>();
+        Cursor cursor = this.schema.getRawDatabase().rawQuery(String.format("PRAGMA table_info(%s)", TABLE), null);
+        try {
+            while (cursor.moveToNext()) {
+                columns.add(cursor.getString(cursor.getColumnIndex("name")));
+            }
+        } finally {
+            cursor.close();
+        }
+        return columns;
+    }
+
+    private boolean hasIndex(String name) {
+        Cursor cursor = this.schema.getRawDatabase().rawQuery(
+                "SELECT 1 FROM sqlite_master WHERE type = 'index' AND name = ?", new String[]{name});
+        try {
+            return cursor.moveToFirst();
+        } finally {
+            cursor.close();
+        }
+    }
+
+    private static Version1 version1(long id, String name) {
+        Version1 entity = new Version1();
+        entity.id = id;
+        entity.name = name;
+        return entity;
+    }
+
+    @Table(name = TABLE)
+    public static class Version1 extends Entity {
+        @Column
+        @PrimaryKey
+        public long id;
+
+        @Column
+        public String name;
+    }
+
+    @Table(name = TABLE)
+    public static class Version2 extends Entity {
+        @Column
+        @PrimaryKey
+        public long id;
+
+        @Column
+        public String name;
+
+        @Column
+        public int quantity;
+    }
+
+    @Table(name = TABLE)
+    public static class Version3 extends Entity {
+        @Column
+        @PrimaryKey
+        public long id;
+
+        @Column
+        public int quantity;
+    }
+
+    @Table(name = TABLE)
+    public static class Indexed extends Entity {
+        @Column
+        @PrimaryKey
+        public long id;
+
+        @Column
+        @Index(name = "migrated_name")
+        public String name;
+    }
+}